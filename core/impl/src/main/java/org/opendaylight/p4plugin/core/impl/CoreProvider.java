@@ -9,7 +9,13 @@ package org.opendaylight.p4plugin.core.impl;
 
 import org.opendaylight.controller.md.sal.binding.api.DataBroker;
 import org.opendaylight.controller.md.sal.binding.api.NotificationPublishService;
+import org.opendaylight.p4plugin.core.impl.connection.FlyweightFactory;
+import org.opendaylight.p4plugin.core.impl.connection.GrpcTransport;
 import org.opendaylight.p4plugin.core.impl.connection.P4RuntimeChannel;
+import org.opendaylight.p4plugin.core.impl.connection.P4RuntimeStub;
+import org.opendaylight.p4plugin.core.impl.connection.PacketInDispatcher;
+import org.opendaylight.p4plugin.core.impl.device.ReconnectSupervisor;
+import org.opendaylight.p4plugin.core.impl.device.WriteCoalescer;
 import org.osgi.framework.BundleContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,6 +25,24 @@ public class CoreProvider {
     private final DataBroker dataBroker;
     private final NotificationPublishService notificationService;
     public BundleContext bcontext;
+    private int packetInDispatchThreads = 4;
+    private int packetInQueueSize = 4096;
+    private boolean publishUnfilteredPacketIn = false;
+    private int packetInBatchSize = 0;
+    private long packetInBatchLinger = 10;
+    private int grpcChannelsPerEndpoint = 1;
+    private FlyweightFactory.Assignment grpcChannelAssignment = FlyweightFactory.Assignment.HASH;
+    private int grpcEventLoopThreads = 0;
+    private int grpcExecutorThreads = 16;
+    private int grpcFlowControlWindow = 1024 * 1024;
+    private int grpcMaxInboundMessageSize = 4 * 1024 * 1024;
+    private long connectTimeout = 1000;
+    private long grpcChannelIdleCloseDelay = 10000;
+    private boolean streamReconnect = true;
+    private long reconnectInitialBackoff = 500;
+    private long reconnectMaxBackoff = 30000;
+    private int reconnectMaxAttempts = 0;
+    private long writeCoalescingTimeout = 5000;
 
     public CoreProvider(final DataBroker dataBroker, 
                         final NotificationPublishService notificationService) {
@@ -30,8 +54,19 @@ public class CoreProvider {
      * Method called when the blueprint container is created.
      */
     public void init() {
+        GrpcTransport.getInstance().configure(grpcEventLoopThreads, grpcExecutorThreads,
+                grpcFlowControlWindow, grpcMaxInboundMessageSize);
         new P4RuntimeChannel("localhost", 50051).shutdown();//grpc bug
+        P4RuntimeStub.setConnectTimeout(connectTimeout);
+        ReconnectSupervisor.configure(streamReconnect, reconnectInitialBackoff,
+                reconnectMaxBackoff, reconnectMaxAttempts);
+        WriteCoalescer.setWriteTimeout(writeCoalescingTimeout);
+        FlyweightFactory.setChannelStriping(grpcChannelsPerEndpoint, grpcChannelAssignment);
+        FlyweightFactory.setIdleCloseDelay(grpcChannelIdleCloseDelay);
         NotificationServiceProvider.getInstance().setNotificationService(notificationService);
+        PacketInDispatcher.setPublishUnfiltered(publishUnfilteredPacketIn);
+        PacketInDispatcher.getInstance().setBatching(packetInBatchSize, packetInBatchLinger);
+        PacketInDispatcher.getInstance().start(packetInDispatchThreads, packetInQueueSize);
         LOG.info("P4plugin core provider initiated.");
     }
     
@@ -39,10 +74,90 @@ public class CoreProvider {
      * Method called when the blueprint container is destroyed.
      */
     public void close() {
+        PacketInDispatcher.getInstance().close();
+        //the channels run on the transport event loop, close them first
+        FlyweightFactory.getInstance().close();
+        GrpcTransport.getInstance().close();
         LOG.info("P4plugin core provider closed.");
     }
 
     public void setBcontext(BundleContext bcontext) {
         this.bcontext = bcontext;
     }
+
+    public void setPacketInDispatchThreads(int packetInDispatchThreads) {
+        this.packetInDispatchThreads = packetInDispatchThreads;
+    }
+
+    public void setPacketInQueueSize(int packetInQueueSize) {
+        this.packetInQueueSize = packetInQueueSize;
+    }
+
+    public void setPublishUnfilteredPacketIn(boolean publishUnfilteredPacketIn) {
+        this.publishUnfilteredPacketIn = publishUnfilteredPacketIn;
+    }
+
+    public void setGrpcChannelsPerEndpoint(int grpcChannelsPerEndpoint) {
+        this.grpcChannelsPerEndpoint = grpcChannelsPerEndpoint;
+    }
+
+    /**
+     * @param grpcChannelAssignment hash or round-robin.
+     */
+    public void setGrpcChannelAssignment(String grpcChannelAssignment) {
+        this.grpcChannelAssignment = FlyweightFactory.Assignment.valueOf(
+                grpcChannelAssignment.trim().toUpperCase().replace('-', '_'));
+    }
+
+    public void setGrpcEventLoopThreads(int grpcEventLoopThreads) {
+        this.grpcEventLoopThreads = grpcEventLoopThreads;
+    }
+
+    public void setGrpcExecutorThreads(int grpcExecutorThreads) {
+        this.grpcExecutorThreads = grpcExecutorThreads;
+    }
+
+    public void setGrpcFlowControlWindow(int grpcFlowControlWindow) {
+        this.grpcFlowControlWindow = grpcFlowControlWindow;
+    }
+
+    public void setGrpcMaxInboundMessageSize(int grpcMaxInboundMessageSize) {
+        this.grpcMaxInboundMessageSize = grpcMaxInboundMessageSize;
+    }
+
+    public void setGrpcChannelIdleCloseDelay(long grpcChannelIdleCloseDelay) {
+        this.grpcChannelIdleCloseDelay = grpcChannelIdleCloseDelay;
+    }
+
+    public void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setStreamReconnect(boolean streamReconnect) {
+        this.streamReconnect = streamReconnect;
+    }
+
+    public void setReconnectInitialBackoff(long reconnectInitialBackoff) {
+        this.reconnectInitialBackoff = reconnectInitialBackoff;
+    }
+
+    public void setReconnectMaxBackoff(long reconnectMaxBackoff) {
+        this.reconnectMaxBackoff = reconnectMaxBackoff;
+    }
+
+    public void setReconnectMaxAttempts(int reconnectMaxAttempts) {
+        this.reconnectMaxAttempts = reconnectMaxAttempts;
+    }
+
+    public void setPacketInBatchSize(int packetInBatchSize) {
+        this.packetInBatchSize = packetInBatchSize;
+    }
+
+    public void setPacketInBatchLinger(long packetInBatchLinger) {
+        this.packetInBatchLinger = packetInBatchLinger;
+    }
+
+    public void setWriteCoalescingTimeout(long writeCoalescingTimeout) {
+        this.writeCoalescingTimeout = writeCoalescingTimeout;
+    }
 }
\ No newline at end of file
@@ -7,24 +7,85 @@
  */
 package org.opendaylight.p4plugin.core.impl;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.TextFormat;
 import org.opendaylight.p4plugin.core.impl.device.DeviceManager;
 import org.opendaylight.p4plugin.core.impl.device.P4Device;
+import org.opendaylight.p4plugin.core.impl.device.PipelineRollout;
+import org.opendaylight.p4plugin.core.impl.utils.Utils;
+import org.opendaylight.p4plugin.p4info.proto.P4Info;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.device.rev170808.P4pluginCoreDeviceService;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.device.rev170808.*;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.device.rev170808.add.nodes.input.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.device.rev170808.add.nodes.output.NodeStatus;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.device.rev170808.add.nodes.output.NodeStatusBuilder;
 import org.opendaylight.yangtools.yang.common.RpcResult;
 import org.opendaylight.yangtools.yang.common.RpcResultBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 public class DeviceServiceProvider implements P4pluginCoreDeviceService {
     private static final Logger LOG = LoggerFactory.getLogger(DeviceServiceProvider.class);
     private final DeviceManager manager =  DeviceManager.getInstance();
+    private int writeCoalescingMaxUpdates = 0;
+    private long writeCoalescingLinger = 1000;
+    private int onboardThreads = 8;
+    private ListeningExecutorService onboardExecutor;
+
+    public void setWriteCoalescingMaxUpdates(int writeCoalescingMaxUpdates) {
+        this.writeCoalescingMaxUpdates = writeCoalescingMaxUpdates;
+    }
+
+    public void setWriteCoalescingLinger(long writeCoalescingLinger) {
+        this.writeCoalescingLinger = writeCoalescingLinger;
+    }
+
+    /**
+     * Threads parsing the runtime files and setting up the channels in add-nodes,
+     * the connections themselves do not hold a thread.
+     */
+    public void setOnboardThreads(int onboardThreads) {
+        this.onboardThreads = onboardThreads;
+    }
+
+    private synchronized ListeningExecutorService getOnboardExecutor() {
+        if (onboardExecutor == null) {
+            onboardExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(onboardThreads,
+                    new ThreadFactoryBuilder().setNameFormat("p4plugin-onboard-%d").setDaemon(true).build()));
+        }
+        return onboardExecutor;
+    }
+
+    /**
+     * Method called when the blueprint container is destroyed.
+     */
+    public synchronized void close() {
+        if (onboardExecutor != null) {
+            onboardExecutor.shutdownNow();
+            onboardExecutor = null;
+        }
+    }
+
     @Override
     public Future<RpcResult<AddNodeOutput>> addNode(AddNodeInput input) {
         Preconditions.checkArgument(input != null, "Add node RPC input is null.");
@@ -35,9 +96,19 @@ public class DeviceServiceProvider implements P4pluginCoreDeviceService {
         Long deviceId = input.getDeviceId().longValue();
         String runtimeFile = input.getRuntimeFile();
         String configFile = input.getConfigFile();
+        int maxUpdates = input.getWriteCoalescingMaxUpdates() == null
+                ? writeCoalescingMaxUpdates : input.getWriteCoalescingMaxUpdates().intValue();
+        long linger = input.getWriteCoalescingLinger() == null
+                ? writeCoalescingLinger : input.getWriteCoalescingLinger();
         try {
-            P4Device device = manager.addDevice(nodeId, deviceId, ip, port, runtimeFile, configFile);
-            builder.setResult(device != null);
+            //the RPC result completes when the switch answers, no thread waits for it
+            return Futures.transform(manager.addDeviceAsync(nodeId, deviceId, ip, port, runtimeFile, configFile),
+                    (Function<P4Device, RpcResult<AddNodeOutput>>) device -> {
+                        if (device != null) {
+                            device.setWriteCoalescing(maxUpdates, linger);
+                        }
+                        return RpcResultBuilder.success(builder.setResult(device != null).build()).build();
+                    }, MoreExecutors.directExecutor());
         } catch (IOException | NullPointerException e) {
             builder.setResult(false);
             LOG.info("Add node exception, "
@@ -52,6 +123,71 @@ public class DeviceServiceProvider implements P4pluginCoreDeviceService {
         return Futures.immediateFuture(RpcResultBuilder.success(builder.build()).build());
     }
 
+    @Override
+    public Future<RpcResult<AddNodesOutput>> addNodes(AddNodesInput input) {
+        Preconditions.checkArgument(input != null, "Add nodes RPC input is null.");
+        List<Node> nodes = input.getNode() == null ? Collections.emptyList() : input.getNode();
+        ListeningExecutorService executor = getOnboardExecutor();
+        Map<String, ListenableFuture<P4Info>> runtimeInfos = new HashMap<>();
+        Map<String, ListenableFuture<ByteString>> deviceConfigs = new HashMap<>();
+        List<ListenableFuture<NodeStatus>> futures = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            ListenableFuture<P4Info> runtimeInfo = runtimeInfos.computeIfAbsent(node.getRuntimeFile(),
+                    file -> executor.submit(() -> Utils.parseRuntimeInfo(file)));
+            ListenableFuture<ByteString> deviceConfig = deviceConfigs.computeIfAbsent(node.getConfigFile(),
+                    file -> executor.submit(() -> Utils.parseDeviceConfigInfo(file)));
+            futures.add(addNode(node, runtimeInfo, deviceConfig, executor));
+        }
+
+        return Futures.transform(Futures.allAsList(futures),
+                (Function<List<NodeStatus>, RpcResult<AddNodesOutput>>) status ->
+                        RpcResultBuilder.success(new AddNodesOutputBuilder()
+                                .setNodeStatus(status)
+                                .setResult(status.stream().allMatch(NodeStatus::isResult))
+                                .build()).build(),
+                MoreExecutors.directExecutor());
+    }
+
+    private ListenableFuture<NodeStatus> addNode(Node node,
+                                                 ListenableFuture<P4Info> runtimeInfo,
+                                                 ListenableFuture<ByteString> deviceConfig,
+                                                 ListeningExecutorService executor) {
+        String nodeId = node.getNodeId();
+        ListenableFuture<P4Device> device = Futures.transform(runtimeInfo,
+                (AsyncFunction<P4Info, P4Device>) info -> Futures.transform(deviceConfig,
+                        (AsyncFunction<ByteString, P4Device>) config -> manager.addDeviceAsync(nodeId,
+                                node.getDeviceId().longValue(),
+                                node.getGrpcServerIp().getValue(),
+                                node.getGrpcServerPort().getValue(),
+                                info, config), executor),
+                MoreExecutors.directExecutor());
+
+        SettableFuture<NodeStatus> status = SettableFuture.create();
+        NodeStatusBuilder builder = new NodeStatusBuilder().setNodeId(nodeId);
+        Futures.addCallback(device, new FutureCallback<P4Device>() {
+            @Override
+            public void onSuccess(P4Device result) {
+                if (result != null) {
+                    result.setWriteCoalescing(node.getWriteCoalescingMaxUpdates() == null
+                                    ? writeCoalescingMaxUpdates : node.getWriteCoalescingMaxUpdates().intValue(),
+                            node.getWriteCoalescingLinger() == null
+                                    ? writeCoalescingLinger : node.getWriteCoalescingLinger());
+                    builder.setResult(true);
+                } else {
+                    builder.setResult(false).setReason("Node or device already exists, or connect failed.");
+                }
+                status.set(builder.build());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOG.info("Add node = {} exception, reason = {}.", nodeId, t.getMessage());
+                status.set(builder.setResult(false).setReason(String.valueOf(t.getMessage())).build());
+            }
+        }, MoreExecutors.directExecutor());
+        return status;
+    }
+
     @Override
     public Future<RpcResult<RemoveNodeOutput>> removeNode(RemoveNodeInput input) {
         Preconditions.checkArgument(input != null, "Remove node RPC input is null.");
@@ -68,7 +204,10 @@ public class DeviceServiceProvider implements P4pluginCoreDeviceService {
         SetPipelineConfigOutputBuilder builder = new SetPipelineConfigOutputBuilder();
         String nodeId = input.getNodeId();
         try {
-            builder.setResult(manager.findDevice(nodeId).setPipelineConfig() != null);
+            P4Device.PipelinePush push = manager.findDevice(nodeId).pushPipeline(
+                    input.isForce() != null && input.isForce());
+            builder.setResult(push != P4Device.PipelinePush.FAILED);
+            builder.setSkipped(push == P4Device.PipelinePush.SKIPPED);
         } catch (Exception e) {
             builder.setResult(false);
             e.printStackTrace();
@@ -76,6 +215,102 @@ public class DeviceServiceProvider implements P4pluginCoreDeviceService {
         return Futures.immediateFuture(RpcResultBuilder.success(builder.build()).build());
     }
 
+    @Override
+    public Future<RpcResult<RolloutPipelineConfigOutput>> rolloutPipelineConfig(RolloutPipelineConfigInput input) {
+        Preconditions.checkArgument(input != null, "Rollout pipeline config RPC input is null.");
+        List<String> nodeIds = input.getNodeId() == null ? Collections.emptyList() : input.getNodeId();
+        String runtimeFile = input.getRuntimeFile();
+        String configFile = input.getConfigFile();
+        ListeningExecutorService executor = getOnboardExecutor();
+        ListenableFuture<P4Info> runtimeInfo = runtimeFile == null ? Futures.immediateFuture(null)
+                : executor.submit(() -> Utils.parseRuntimeInfo(runtimeFile));
+        ListenableFuture<ByteString> deviceConfig = configFile == null ? Futures.immediateFuture(null)
+                : executor.submit(() -> Utils.parseDeviceConfigInfo(configFile));
+        ListenableFuture<PipelineRollout> rollout = Futures.transform(runtimeInfo,
+                (AsyncFunction<P4Info, PipelineRollout>) info -> Futures.transform(deviceConfig,
+                        (Function<ByteString, PipelineRollout>) config ->
+                                new PipelineRollout(input.getRolloutId(), nodeIds, info, config),
+                        MoreExecutors.directExecutor()),
+                MoreExecutors.directExecutor());
+
+        SettableFuture<RpcResult<RolloutPipelineConfigOutput>> output = SettableFuture.create();
+        Futures.addCallback(rollout, new FutureCallback<PipelineRollout>() {
+            @Override
+            public void onSuccess(PipelineRollout result) {
+                Futures.addCallback(result.start(), new FutureCallback<Boolean>() {
+                    @Override
+                    public void onSuccess(Boolean committed) {
+                        output.set(RpcResultBuilder.success(new RolloutPipelineConfigOutputBuilder()
+                                .setResult(committed)
+                                .setRolloutId(result.getRolloutId())
+                                .setPhase(result.getPhase().name())
+                                .setVerifyMillis(BigInteger.valueOf(result.getVerifyMillis()))
+                                .setCommitMillis(BigInteger.valueOf(result.getCommitMillis()))
+                                .setNodeStatus(toNodeStatus(result))
+                                .build()).build());
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        LOG.info("Pipeline rollout {} exception, reason = {}.", result.getRolloutId(), t.getMessage());
+                        output.set(RpcResultBuilder.success(new RolloutPipelineConfigOutputBuilder()
+                                .setResult(false)
+                                .setRolloutId(result.getRolloutId())
+                                .setPhase(result.getPhase().name())
+                                .setNodeStatus(toNodeStatus(result))
+                                .build()).build());
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOG.info("Pipeline rollout exception, runtime file = {}, config file = {}, reason = {}.",
+                        runtimeFile, configFile, t.getMessage());
+                output.set(RpcResultBuilder.success(new RolloutPipelineConfigOutputBuilder()
+                        .setResult(false)
+                        .setRolloutId(input.getRolloutId())
+                        .setPhase(PipelineRollout.Phase.Aborted.name())
+                        .build()).build());
+            }
+        }, MoreExecutors.directExecutor());
+        return output;
+    }
+
+    @Override
+    public Future<RpcResult<GetPipelineRolloutOutput>> getPipelineRollout(GetPipelineRolloutInput input) {
+        GetPipelineRolloutOutputBuilder builder = new GetPipelineRolloutOutputBuilder();
+        PipelineRollout rollout = PipelineRollout.findRollout(input == null ? null : input.getRolloutId());
+        if (rollout == null) {
+            builder.setResult(false);
+        } else {
+            builder.setResult(rollout.isCommitted())
+                    .setRolloutId(rollout.getRolloutId())
+                    .setPhase(rollout.getPhase().name())
+                    .setVerifyMillis(BigInteger.valueOf(rollout.getVerifyMillis()))
+                    .setCommitMillis(BigInteger.valueOf(rollout.getCommitMillis()))
+                    .setNodeStatus(toNodeStatus(rollout));
+        }
+        return Futures.immediateFuture(RpcResultBuilder.success(builder.build()).build());
+    }
+
+    private static List<org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.device.rev170808
+            .pipeline.rollout.status.NodeStatus> toNodeStatus(PipelineRollout rollout) {
+        List<org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.device.rev170808
+                .pipeline.rollout.status.NodeStatus> status = new ArrayList<>();
+        rollout.getStatus().forEach(s -> status.add(
+                new org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.device.rev170808
+                        .pipeline.rollout.status.NodeStatusBuilder()
+                        .setNodeId(s.getNodeId())
+                        .setVerified(s.isVerified())
+                        .setCommitted(s.isCommitted())
+                        .setVerifyMillis(BigInteger.valueOf(s.getVerifyMillis()))
+                        .setCommitMillis(BigInteger.valueOf(s.getCommitMillis()))
+                        .setReason(s.getReason())
+                        .build()));
+        return status;
+    }
+
     @Override
     public Future<RpcResult<GetPipelineConfigOutput>> getPipelineConfig(GetPipelineConfigInput input) {
         Preconditions.checkArgument(input != null, "Get pipeline config RPC input is null.");
@@ -29,7 +29,7 @@ public class NotificationServiceProvider {
 
     public <T extends Notification> void notify(T notification) {
         if (null != notificationService) {
-            LOG.info("Notification publish!");
+            LOG.debug("Notification publish!");
             notificationService.offerNotification(notification);
         }
     }
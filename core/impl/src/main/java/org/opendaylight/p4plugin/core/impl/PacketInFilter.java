@@ -0,0 +1,175 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl;
+
+import com.google.protobuf.ByteString;
+import org.opendaylight.p4plugin.core.impl.device.PacketMetadataLayout;
+import org.opendaylight.p4plugin.p4runtime.proto.PacketIn;
+import org.opendaylight.p4plugin.p4runtime.proto.PacketMetadata;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.packet.metadata.Metadata;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.packet.metadata.MetadataBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Packet-in filter, all the given conditions must match. The ethertype and the
+ * ip protocol are compiled into byte offset checks on the payload, the metadata
+ * values are encoded once per device packet_in layout and compared as bytes.
+ * The ip protocol implies ethertype 0x0800 unless the ethertype is 0x86dd.
+ */
+public final class PacketInFilter {
+    private static final int ETHERTYPE_OFFSET = 12;
+    private static final int IPV4_PROTOCOL_OFFSET = 23;
+    private static final int IPV6_NEXT_HEADER_OFFSET = 20;
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final List<PacketMetadata> NEVER = Collections.emptyList();
+    private final String nodeId;
+    private final int[] offsets;
+    private final byte[] values;
+    private final List<Metadata> metadata;
+    private final ConcurrentHashMap<PacketMetadataLayout, List<PacketMetadata>> compiledMetadata =
+            new ConcurrentHashMap<>();
+
+    private PacketInFilter(Builder builder) {
+        this.nodeId = builder.nodeId;
+        this.metadata = Collections.unmodifiableList(new ArrayList<>(builder.metadata));
+        int ethertype = builder.ethertype;
+        if (builder.ipProtocol >= 0 && ethertype < 0) {
+            ethertype = ETHERTYPE_IPV4;
+        }
+
+        List<int[]> checks = new ArrayList<>();
+        if (ethertype >= 0) {
+            checks.add(new int[] {ETHERTYPE_OFFSET, ethertype >>> 8});
+            checks.add(new int[] {ETHERTYPE_OFFSET + 1, ethertype & 0xFF});
+        }
+        if (builder.ipProtocol >= 0) {
+            int offset = ethertype == ETHERTYPE_IPV6 ? IPV6_NEXT_HEADER_OFFSET : IPV4_PROTOCOL_OFFSET;
+            checks.add(new int[] {offset, builder.ipProtocol});
+        }
+
+        offsets = new int[checks.size()];
+        values = new byte[checks.size()];
+        for (int i = 0; i < checks.size(); i++) {
+            offsets[i] = checks.get(i)[0];
+            values[i] = (byte) checks.get(i)[1];
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @param layout packet_in layout of the device, null if it has none.
+     */
+    public boolean matches(String packetNodeId, PacketIn packet, PacketMetadataLayout layout) {
+        if (nodeId != null && !nodeId.equals(packetNodeId)) {
+            return false;
+        }
+
+        ByteString payload = packet.getPayload();
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] >= payload.size() || payload.byteAt(offsets[i]) != values[i]) {
+                return false;
+            }
+        }
+
+        return metadata.isEmpty() || matchesMetadata(packet, layout);
+    }
+
+    private boolean matchesMetadata(PacketIn packet, PacketMetadataLayout layout) {
+        if (layout == null) {
+            return false;
+        }
+
+        List<PacketMetadata> expected = compiledMetadata.computeIfAbsent(layout, this::compile);
+        if (expected == NEVER) {
+            return false;
+        }
+
+        for (PacketMetadata want : expected) {
+            boolean found = false;
+            for (PacketMetadata got : packet.getMetadataList()) {
+                if (got.getMetadataId() == want.getMetadataId()) {
+                    found = sameValue(got.getValue(), want.getValue());
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<PacketMetadata> compile(PacketMetadataLayout layout) {
+        try {
+            return layout.encode(metadata);
+        } catch (IllegalArgumentException e) {
+            //the device has no such metadata, nothing from it can match
+            return NEVER;
+        }
+    }
+
+    /**
+     * Numeric comparison, the device may send the value without the leading zero bytes.
+     */
+    private static boolean sameValue(ByteString a, ByteString b) {
+        for (int k = Math.max(a.size(), b.size()); k > 0; k--) {
+            byte x = k > a.size() ? 0 : a.byteAt(a.size() - k);
+            byte y = k > b.size() ? 0 : b.byteAt(b.size() - k);
+            if (x != y) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static final class Builder {
+        private String nodeId;
+        private int ethertype = -1;
+        private int ipProtocol = -1;
+        private final List<Metadata> metadata = new ArrayList<>();
+
+        public Builder setNodeId(String nodeId) {
+            this.nodeId = nodeId;
+            return this;
+        }
+
+        public Builder setEthertype(int ethertype) {
+            this.ethertype = ethertype;
+            return this;
+        }
+
+        public Builder setIpProtocol(int ipProtocol) {
+            this.ipProtocol = ipProtocol;
+            return this;
+        }
+
+        /**
+         * @param value value in any form ValueEncoder accepts.
+         */
+        public Builder addMetadata(String name, String value) {
+            metadata.add(new MetadataBuilder().setName(name).setValue(value).build());
+            return this;
+        }
+
+        public PacketInFilter build() {
+            return new PacketInFilter(this);
+        }
+    }
+}
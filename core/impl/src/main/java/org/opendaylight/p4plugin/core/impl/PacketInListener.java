@@ -0,0 +1,23 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl;
+
+import org.opendaylight.p4plugin.core.impl.device.PacketMetadataLayout;
+import org.opendaylight.p4plugin.p4runtime.proto.PacketIn;
+
+/**
+ * Consumer of the packet-in matching a PacketInFilter, called on a dispatcher
+ * thread with the packet as received, no binding object is built for it.
+ */
+@FunctionalInterface
+public interface PacketInListener {
+    /**
+     * @param layout packet_in layout of the device, to decode the metadata if needed, may be null.
+     */
+    void onPacketReceived(String nodeId, PacketIn packet, PacketMetadataLayout layout);
+}
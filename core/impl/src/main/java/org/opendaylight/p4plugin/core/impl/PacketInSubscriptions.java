@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl;
+
+import org.opendaylight.p4plugin.core.impl.device.PacketMetadataLayout;
+import org.opendaylight.p4plugin.p4runtime.proto.PacketIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of the packet-in subscriptions. A packet is handed only to the
+ * listeners whose filter matches it, registrations are rare and lookups are on
+ * every packet, so the subscriptions are kept in a copy-on-write list.
+ */
+public class PacketInSubscriptions {
+    private static final Logger LOG = LoggerFactory.getLogger(PacketInSubscriptions.class);
+    private static PacketInSubscriptions singleton = new PacketInSubscriptions();
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private PacketInSubscriptions() {}
+
+    public static PacketInSubscriptions getInstance() {
+        return singleton;
+    }
+
+    /**
+     * @return registration, close it to unsubscribe.
+     */
+    public AutoCloseable register(PacketInFilter filter, PacketInListener listener) {
+        Subscription subscription = new Subscription(filter, listener);
+        subscriptions.add(subscription);
+        LOG.info("Packet-in subscription registered, node = {}.", filter.getNodeId());
+        return () -> subscriptions.remove(subscription);
+    }
+
+    public boolean isEmpty() {
+        return subscriptions.isEmpty();
+    }
+
+    /**
+     * Whether any subscription wants the packet, evaluated on the gRPC thread.
+     */
+    public boolean matches(String nodeId, PacketIn packet, PacketMetadataLayout layout) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.filter.matches(nodeId, packet, layout)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hand the packet to the matching listeners.
+     * @return the number of listeners called.
+     */
+    public int deliver(String nodeId, PacketIn packet, PacketMetadataLayout layout) {
+        int delivered = 0;
+        for (Subscription subscription : subscriptions) {
+            if (subscription.filter.matches(nodeId, packet, layout)) {
+                try {
+                    subscription.listener.onPacketReceived(nodeId, packet, layout);
+                } catch (RuntimeException e) {
+                    LOG.info("Packet-in listener failed, node = {}, reason = {}.", nodeId, e.getMessage());
+                }
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    private static final class Subscription {
+        private final PacketInFilter filter;
+        private final PacketInListener listener;
+
+        private Subscription(PacketInFilter filter, PacketInListener listener) {
+            this.filter = filter;
+            this.listener = listener;
+        }
+    }
+}
@@ -7,28 +7,176 @@
  */
 package org.opendaylight.p4plugin.core.impl;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.opendaylight.p4plugin.core.impl.connection.P4RuntimeStub;
+import org.opendaylight.p4plugin.core.impl.connection.PacketCounters;
+import org.opendaylight.p4plugin.core.impl.connection.PacketInDispatcher;
+import org.opendaylight.p4plugin.core.impl.connection.PacketOutQueue;
 import org.opendaylight.p4plugin.core.impl.device.DeviceManager;
+import org.opendaylight.p4plugin.core.impl.device.P4Device;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.GetPacketCountersInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.GetPacketCountersOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.GetPacketCountersOutputBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.P4TransmitPacketInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.P4TransmitPacketsInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.P4TransmitPacketsOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.P4TransmitPacketsOutputBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.P4pluginCorePacketService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.p4.transmit.packets.input.Packet;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.p4.transmit.packets.output.TargetStatus;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.p4.transmit.packets.output.TargetStatusBuilder;
 import org.opendaylight.yangtools.yang.common.RpcResult;
 import org.opendaylight.yangtools.yang.common.RpcResultBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 public class PacketServiceProvider implements P4pluginCorePacketService {
     private static final Logger LOG = LoggerFactory.getLogger(PacketServiceProvider.class);
+    private static final int TRANSMIT_FANOUT_THREADS = 8;
+    private final ListeningExecutorService transmitExecutor = MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(TRANSMIT_FANOUT_THREADS,
+                    new ThreadFactoryBuilder().setNameFormat("p4plugin-packet-out-%d").setDaemon(true).build()));
     private final DeviceManager manager =  DeviceManager.getInstance();
+
+    private int packetOutQueueSize = 1024;
+    private PacketOutQueue.OverflowPolicy packetOutOverflowPolicy = PacketOutQueue.OverflowPolicy.BLOCK;
+
+    public void setPacketLogSampleRate(int packetLogSampleRate) {
+        P4RuntimeStub.setPacketLogSampleRate(packetLogSampleRate);
+    }
+
+    public void setPacketOutQueueSize(int packetOutQueueSize) {
+        this.packetOutQueueSize = packetOutQueueSize;
+        P4RuntimeStub.setPacketOutQueue(packetOutQueueSize, packetOutOverflowPolicy);
+    }
+
+    /**
+     * @param packetOutOverflowPolicy block, drop-oldest or reject.
+     */
+    public void setPacketOutOverflowPolicy(String packetOutOverflowPolicy) {
+        this.packetOutOverflowPolicy = PacketOutQueue.OverflowPolicy.valueOf(
+                packetOutOverflowPolicy.trim().toUpperCase().replace('-', '_'));
+        P4RuntimeStub.setPacketOutQueue(packetOutQueueSize, this.packetOutOverflowPolicy);
+    }
+
+    public void setPacketOutBlockTimeout(long packetOutBlockTimeout) {
+        P4RuntimeStub.setPacketOutBlockTimeout(packetOutBlockTimeout);
+    }
+
     public Future<RpcResult<Void>> p4TransmitPacket(P4TransmitPacketInput input) {
         Preconditions.checkArgument(input != null, "Transmit packet input is null.");
         try {
-            manager.findConfiguredDevice(input.getNodeId()).transmitPacket(input.getPayload());
+            P4Device device = manager.findConfiguredDevice(input.getNodeId());
+            if (!device.transmitPacket(input.getMetadata(), input.getPayload())) {
+                LOG.debug("Packet to node = {} dropped by the packet-out queue.", input.getNodeId());
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
         return Futures.immediateFuture(RpcResultBuilder.success((Void)null).build());
     }
+
+    /**
+     * Send every packet to every target node, one task per node, so a node whose
+     * packet-out queue blocks does not hold up the others. The payloads are taken
+     * out of the input once and shared by all the targets.
+     */
+    @Override
+    public Future<RpcResult<P4TransmitPacketsOutput>> p4TransmitPackets(P4TransmitPacketsInput input) {
+        Preconditions.checkArgument(input != null, "Transmit packets input is null.");
+        //target-status is keyed by node id, every node is sent to once
+        Set<String> nodeIds = input.getNodeId() == null
+                ? Collections.emptySet() : new LinkedHashSet<>(input.getNodeId());
+        List<Packet> packets = input.getPacket() == null ? Collections.emptyList() : input.getPacket();
+        byte[][] payloads = new byte[packets.size()][];
+        for (int i = 0; i < packets.size(); i++) {
+            payloads[i] = packets.get(i).getPayload();
+        }
+
+        List<ListenableFuture<TargetStatus>> futures = new ArrayList<>(nodeIds.size());
+        nodeIds.forEach(nodeId -> futures.add(transmitExecutor.submit(() -> transmitPackets(nodeId, packets, payloads))));
+        return Futures.transform(Futures.allAsList(futures),
+                (Function<List<TargetStatus>, RpcResult<P4TransmitPacketsOutput>>) status ->
+                        RpcResultBuilder.success(new P4TransmitPacketsOutputBuilder()
+                                .setTargetStatus(status)
+                                .setResult(status.stream().allMatch(TargetStatus::isResult))
+                                .build()).build(),
+                MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Method called when the blueprint container is destroyed.
+     */
+    public void close() {
+        transmitExecutor.shutdownNow();
+    }
+
+    /**
+     * Only the packets the packet-out queue refused are counted as dropped, a
+     * packet which never reached the queue fails the target instead.
+     */
+    private TargetStatus transmitPackets(String nodeId, List<Packet> packets, byte[][] payloads) {
+        TargetStatusBuilder builder = new TargetStatusBuilder().setNodeId(nodeId);
+        P4Device device = manager.findConfiguredDevice(nodeId);
+        if (device == null) {
+            return builder.setResult(false).setAccepted(0L).setDropped(0L).build();
+        }
+
+        long accepted = 0;
+        long dropped = 0;
+        boolean result = true;
+        for (int i = 0; i < payloads.length; i++) {
+            try {
+                if (device.transmitPacket(packets.get(i).getMetadata(), payloads[i])) {
+                    accepted++;
+                } else {
+                    dropped++;
+                }
+            } catch (Exception e) {
+                result = false;
+                LOG.info("Transmit packet {} to node = {} failed, reason = {}.",
+                        packets.get(i).getPacketId(), nodeId, e.getMessage());
+            }
+        }
+        return builder.setResult(result).setAccepted(accepted).setDropped(dropped).build();
+    }
+
+    @Override
+    public Future<RpcResult<GetPacketCountersOutput>> getPacketCounters(GetPacketCountersInput input) {
+        Preconditions.checkArgument(input != null, "Get packet counters input is null.");
+        GetPacketCountersOutputBuilder builder = new GetPacketCountersOutputBuilder();
+        try {
+            P4Device device = manager.findDevice(input.getNodeId());
+            PacketCounters counters = device.getPacketCounters();
+            builder.setPacketsIn(BigInteger.valueOf(counters.getPacketsIn()));
+            builder.setBytesIn(BigInteger.valueOf(counters.getBytesIn()));
+            builder.setPacketsOut(BigInteger.valueOf(counters.getPacketsOut()));
+            builder.setBytesOut(BigInteger.valueOf(counters.getBytesOut()));
+            builder.setPacketsInDropped(BigInteger.valueOf(counters.getPacketsInDropped()));
+            builder.setDispatchDropped(BigInteger.valueOf(PacketInDispatcher.getInstance().getDropped()));
+            builder.setDispatchHighWater((long) PacketInDispatcher.getInstance().getHighWaterMark());
+            builder.setPacketsOutDropped(BigInteger.valueOf(device.getPacketOutDropped()));
+            builder.setPacketOutQueueDepth((long) device.getPacketOutQueueDepth());
+            builder.setResult(true);
+        } catch (Exception e) {
+            builder.setResult(false);
+            e.printStackTrace();
+        }
+        return Futures.immediateFuture(RpcResultBuilder.success(builder.build()).build());
+    }
 }
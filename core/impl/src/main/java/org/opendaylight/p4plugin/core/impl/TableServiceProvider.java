@@ -8,20 +8,47 @@
 package org.opendaylight.p4plugin.core.impl;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Function;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.opendaylight.p4plugin.core.impl.device.DeviceManager;
 import org.opendaylight.p4plugin.core.impl.device.P4Device;
+import org.opendaylight.p4plugin.core.impl.device.ReadPage;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.*;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.read.action.profile.group.output.Group;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.read.action.profile.member.output.Member;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.read.table.entry.output.Entry;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.write.batch.input.Update;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.write.batch.output.UpdateStatus;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.write.batch.output.UpdateStatusBuilder;
 import org.opendaylight.yangtools.yang.common.RpcResult;
 import org.opendaylight.yangtools.yang.common.RpcResultBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Future;
 
 public class TableServiceProvider implements P4pluginCoreTableService {
     private static final Logger LOG = LoggerFactory.getLogger(TableServiceProvider.class);
     private final DeviceManager manager =  DeviceManager.getInstance();
+    private int writeBatchChunkSize = 1000;
+    private boolean asyncWrite = false;
+
+    public void setWriteBatchChunkSize(int writeBatchChunkSize) {
+        this.writeBatchChunkSize = writeBatchChunkSize;
+    }
+
+    /**
+     * In async write mode, the write RPCs return futures which complete when the
+     * switch acknowledges, instead of holding the RPC thread for the round trip.
+     */
+    public void setAsyncWrite(boolean asyncWrite) {
+        this.asyncWrite = asyncWrite;
+    }
 
     @Override
     public Future<RpcResult<AddTableEntryOutput>> addTableEntry(AddTableEntryInput input) {
@@ -30,6 +57,10 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         String nodeId = input.getNodeId();
         try {
             P4Device device = manager.findConfiguredDevice(nodeId);
+            if (asyncWrite) {
+                return toRpcResult(device.newTableManager().addTableEntryAsync(input),
+                        result -> builder.setResult(result).build());
+            }
             builder.setResult(device.newTableManager().addTableEntry(input));
         } catch (Exception e) {
             builder.setResult(false);
@@ -45,6 +76,10 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         String nodeId = input.getNodeId();
         try {
             P4Device device = manager.findConfiguredDevice(nodeId);
+            if (asyncWrite) {
+                return toRpcResult(device.newTableManager().modifyTableEntryAsync(input),
+                        result -> builder.setResult(result).build());
+            }
             builder.setResult(device.newTableManager().modifyTableEntry(input));
         } catch (Exception e) {
             builder.setResult(false);
@@ -60,6 +95,10 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         String nodeId = input.getNodeId();
         try {
             P4Device device = manager.findConfiguredDevice(nodeId);
+            if (asyncWrite) {
+                return toRpcResult(device.newTableManager().deleteTableEntryAsync(input),
+                        result -> builder.setResult(result).build());
+            }
             builder.setResult(device.newTableManager().deleteTableEntry(input));
         } catch (Exception e) {
             builder.setResult(false);
@@ -76,7 +115,20 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         String tableName = input.getTable();
         try {
             P4Device device = manager.findConfiguredDevice(nodeId);
-            builder.setContent(device.newTableManager().readTableEntry(tableName));
+            boolean fromCache = input.getSource() == ReadSource.Cache;
+            long offset = input.getOffset() == null ? 0 : input.getOffset();
+            long limit = input.getLimit() == null ? 0 : input.getLimit();
+            if (input.getFormat() == ReadFormat.Structured) {
+                ReadPage<Entry> page = device.newTableManager()
+                        .readTableEntry(tableName, fromCache, offset, limit, device::toTableEntryData);
+                builder.setEntry(page.getContent());
+                builder.setNextOffset(page.getNextOffset());
+            } else {
+                ReadPage<String> page = device.newTableManager()
+                        .readTableEntry(tableName, fromCache, offset, limit, device::toTableEntryString);
+                builder.setContent(page.getContent());
+                builder.setNextOffset(page.getNextOffset());
+            }
             builder.setResult(true);
         } catch (Exception e) {
             builder.setResult(false);
@@ -92,6 +144,10 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         String nodeId = input.getNodeId();
         try {
             P4Device device = manager.findConfiguredDevice(nodeId);
+            if (asyncWrite) {
+                return toRpcResult(device.newTableManager().addActionProfileMemberAsync(input),
+                        result -> builder.setResult(result).build());
+            }
             builder.setResult(device.newTableManager().addActionProfileMember(input));
         } catch (Exception e) {
             builder.setResult(false);
@@ -107,6 +163,10 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         String nodeId = input.getNodeId();
         try {
             P4Device device = manager.findConfiguredDevice(nodeId);
+            if (asyncWrite) {
+                return toRpcResult(device.newTableManager().modifyActionProfileMemberAsync(input),
+                        result -> builder.setResult(result).build());
+            }
             builder.setResult(device.newTableManager().modifyActionProfileMember(input));
         } catch (Exception e) {
             builder.setResult(false);
@@ -122,6 +182,10 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         String nodeId = input.getNodeId();
         try {
             P4Device device = manager.findConfiguredDevice(nodeId);
+            if (asyncWrite) {
+                return toRpcResult(device.newTableManager().deleteActionProfileMemberAsync(input),
+                        result -> builder.setResult(result).build());
+            }
             builder.setResult(device.newTableManager().deleteActionProfileMember(input));
         } catch (Exception e) {
             builder.setResult(false);
@@ -138,7 +202,20 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         String actionProfile = input.getActionProfile();
         try {
             P4Device device = manager.findConfiguredDevice(nodeId);
-            builder.setContent(device.newTableManager().readActionProfileMember(actionProfile));
+            boolean fromCache = input.getSource() == ReadSource.Cache;
+            long offset = input.getOffset() == null ? 0 : input.getOffset();
+            long limit = input.getLimit() == null ? 0 : input.getLimit();
+            if (input.getFormat() == ReadFormat.Structured) {
+                ReadPage<Member> page = device.newTableManager().readActionProfileMember(actionProfile,
+                        fromCache, offset, limit, device::toActionProfileMemberData);
+                builder.setMember(page.getContent());
+                builder.setNextOffset(page.getNextOffset());
+            } else {
+                ReadPage<String> page = device.newTableManager().readActionProfileMember(actionProfile,
+                        fromCache, offset, limit, device::toActionProfileMemberString);
+                builder.setContent(page.getContent());
+                builder.setNextOffset(page.getNextOffset());
+            }
             builder.setResult(true);
         } catch (Exception e) {
             builder.setResult(false);
@@ -154,6 +231,10 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         String nodeId = input.getNodeId();
         try {
             P4Device device = manager.findConfiguredDevice(nodeId);
+            if (asyncWrite) {
+                return toRpcResult(device.newTableManager().addActionProfileGroupAsync(input),
+                        result -> builder.setResult(result).build());
+            }
             builder.setResult(device.newTableManager().addActionProfileGroup(input));
         } catch (Exception e) {
             builder.setResult(false);
@@ -169,6 +250,10 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         String nodeId = input.getNodeId();
         try {
             P4Device device = manager.findConfiguredDevice(nodeId);
+            if (asyncWrite) {
+                return toRpcResult(device.newTableManager().modifyActionProfileGroupAsync(input),
+                        result -> builder.setResult(result).build());
+            }
             builder.setResult(device.newTableManager().modifyActionProfileGroup(input));
         } catch (Exception e) {
             builder.setResult(false);
@@ -184,6 +269,10 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         String nodeId = input.getNodeId();
         try {
             P4Device device = manager.findConfiguredDevice(nodeId);
+            if (asyncWrite) {
+                return toRpcResult(device.newTableManager().deleteActionProfileGroupAsync(input),
+                        result -> builder.setResult(result).build());
+            }
             builder.setResult(device.newTableManager().deleteActionProfileGroup(input));
         } catch (Exception e) {
             builder.setResult(false);
@@ -200,7 +289,20 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         String actionProfile = input.getActionProfile();
         try {
             P4Device device = manager.findConfiguredDevice(nodeId);
-            builder.setContent(device.newTableManager().readActionProfileGroup(actionProfile));
+            boolean fromCache = input.getSource() == ReadSource.Cache;
+            long offset = input.getOffset() == null ? 0 : input.getOffset();
+            long limit = input.getLimit() == null ? 0 : input.getLimit();
+            if (input.getFormat() == ReadFormat.Structured) {
+                ReadPage<Group> page = device.newTableManager().readActionProfileGroup(actionProfile,
+                        fromCache, offset, limit, device::toActionProfileGroupData);
+                builder.setGroup(page.getContent());
+                builder.setNextOffset(page.getNextOffset());
+            } else {
+                ReadPage<String> page = device.newTableManager().readActionProfileGroup(actionProfile,
+                        fromCache, offset, limit, device::toActionProfileGroupString);
+                builder.setContent(page.getContent());
+                builder.setNextOffset(page.getNextOffset());
+            }
             builder.setResult(true);
         } catch (Exception e) {
             builder.setResult(false);
@@ -208,4 +310,53 @@ public class TableServiceProvider implements P4pluginCoreTableService {
         }
         return Futures.immediateFuture(RpcResultBuilder.success(builder.build()).build());
     }
+
+    @Override
+    public Future<RpcResult<WriteBatchOutput>> writeBatch(WriteBatchInput input) {
+        Preconditions.checkArgument(input != null, "Write batch RPC input is null.");
+        WriteBatchOutputBuilder builder = new WriteBatchOutputBuilder();
+        String nodeId = input.getNodeId();
+        List<Update> updates = input.getUpdate() == null ? Collections.emptyList() : input.getUpdate();
+        int chunkSize = input.getChunkSize() == null ? writeBatchChunkSize : input.getChunkSize().intValue();
+        try {
+            P4Device device = manager.findConfiguredDevice(nodeId);
+            if (asyncWrite) {
+                return Futures.transform(device.newTableManager().writeBatchAsync(updates, chunkSize),
+                        (Function<List<Boolean>, RpcResult<WriteBatchOutput>>) results ->
+                                RpcResultBuilder.success(toWriteBatchOutput(builder, updates, results)).build(),
+                        MoreExecutors.directExecutor());
+            }
+            List<Boolean> results = device.newTableManager().writeBatch(updates, chunkSize);
+            toWriteBatchOutput(builder, updates, results);
+        } catch (Exception e) {
+            builder.setResult(false);
+            e.printStackTrace();
+        }
+        return Futures.immediateFuture(RpcResultBuilder.success(builder.build()).build());
+    }
+
+    private WriteBatchOutput toWriteBatchOutput(WriteBatchOutputBuilder builder,
+                                                List<Update> updates, List<Boolean> results) {
+        List<UpdateStatus> status = new ArrayList<>();
+        for (int i = 0; i < updates.size(); i++) {
+            status.add(new UpdateStatusBuilder()
+                    .setUpdateId(updates.get(i).getUpdateId())
+                    .setResult(results.get(i))
+                    .build());
+        }
+        builder.setUpdateStatus(status);
+        builder.setResult(!results.contains(false));
+        return builder.build();
+    }
+
+    /**
+     * Used in async write mode, the RPC result is completed when the switch
+     * acknowledges the write request.
+     */
+    private static <T> Future<RpcResult<T>> toRpcResult(ListenableFuture<Boolean> result,
+                                                        Function<Boolean, T> toOutput) {
+        return Futures.transform(result,
+                (Function<Boolean, RpcResult<T>>) success -> RpcResultBuilder.success(toOutput.apply(success)).build(),
+                MoreExecutors.directExecutor());
+    }
 }
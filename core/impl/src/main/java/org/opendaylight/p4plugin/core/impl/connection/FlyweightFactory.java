@@ -7,52 +7,176 @@
  */
 package org.opendaylight.p4plugin.core.impl.connection;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Flyweight factory is a P4 runtime channel factory, multiple devices share
- * the same gRPC channel, only one factory instance. P4 runtime stub is over
+ * the same gRPC channels, only one factory instance. P4 runtime stub is over
  * the runtime channel.
  *
+ * Each ip:port endpoint has a fixed number of channel stripes, that is, tcp
+ * connections, created on first use. A device is assigned a stripe by hashing
+ * its device id, so it keeps the same connection, or round-robin. Acquiring a
+ * channel takes no lock, a stub retains the channel and releases it on shutdown.
+ * A channel released by its last stub is closed after idleCloseDelayMillis on a
+ * timer thread, unless it is retained again in between, so a flapping device
+ * keeps its connection and nobody waits for a channel to terminate.
  */
 public class FlyweightFactory {
-    private final ConcurrentHashMap<String, P4RuntimeChannel> pool = new ConcurrentHashMap<>();
+    public enum Assignment {
+        HASH,
+        ROUND_ROBIN
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(FlyweightFactory.class);
+    private static final long CLOSE_AWAIT_MILLIS = 5000;
+    private static final ScheduledExecutorService closer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("p4plugin-channel-closer-%d").setDaemon(true).build());
+    private final ConcurrentHashMap<String, Endpoint> pool = new ConcurrentHashMap<>();
     private static FlyweightFactory singleton = new FlyweightFactory();
+    private static volatile int channelsPerEndpoint = 1;
+    private static volatile Assignment assignment = Assignment.HASH;
+    private static volatile long idleCloseDelayMillis = 10000;
     private FlyweightFactory() {}
     public static FlyweightFactory getInstance() {
         return singleton;
     }
 
     /**
-     * The ip address and port number determine a gRPC channel, in other
-     * words, a tcp connection.
+     * Applies to the endpoints first used afterwards.
+     * @param channels number of gRPC channels per ip:port.
+     * @param channelAssignment how a device is assigned one of them.
+     */
+    public static void setChannelStriping(int channels, Assignment channelAssignment) {
+        channelsPerEndpoint = Math.max(1, channels);
+        assignment = channelAssignment;
+    }
+
+    /**
+     * @param delayMillis how long a channel without stubs is kept open.
+     */
+    public static void setIdleCloseDelay(long delayMillis) {
+        idleCloseDelayMillis = delayMillis;
+    }
+
+    /**
+     * The ip address and port number determine a group of gRPC channels, the
+     * device id picks one of them, in other words, a tcp connection. The channel
+     * is retained for the caller, who must release it when done.
      * @param ip ip address.
      * @param port port number.
+     * @param deviceId device id.
      * @return a gRPC channel.
      */
-    public synchronized P4RuntimeChannel getChannel(String ip, Integer port) {
-        String key = String.format("%s:%d", ip, port);
-        P4RuntimeChannel channel = pool.get(key);
-        if (channel == null) {
-            channel = new P4RuntimeChannel(ip, port);
-            pool.put(key, channel);
+    public P4RuntimeChannel acquireChannel(String ip, Integer port, Long deviceId) {
+        Endpoint endpoint = pool.computeIfAbsent(ip + ":" + port,
+                k -> new Endpoint(ip, port, channelsPerEndpoint, assignment));
+        int index = endpoint.index(deviceId);
+        while (true) {
+            P4RuntimeChannel channel = endpoint.stripe(index);
+            if (channel.retain()) {
+                return channel;
+            }
+            //closed by the idle timer in between, put a new one in its place
+            endpoint.stripes.compareAndSet(index, channel, null);
         }
-        return channel;
     }
 
     /**
-     * When there is no stream channel using a gRPC channel, then free
-     * the gRPC channel.
+     * Close all the channels and the idle timer, called before the gRPC transport
+     * is closed, so no channel is left running on its event loop.
      */
-    public synchronized void gc() {
-        List<String> keys = pool.keySet().stream()
-                .filter(key->pool.get(key).getStubsCount() == 0)
-                .collect(Collectors.toList());
-        keys.forEach(key->{
-            pool.get(key).shutdown();
-            pool.remove(key);
+    public void close() {
+        closer.shutdownNow();
+        List<P4RuntimeChannel> channels = new ArrayList<>();
+        pool.values().forEach(endpoint -> {
+            for (int i = 0; i < endpoint.stripes.length(); i++) {
+                P4RuntimeChannel channel = endpoint.stripes.getAndSet(i, null);
+                if (channel != null) {
+                    channels.add(channel);
+                    channel.shutdown();
+                }
+            }
         });
+        pool.clear();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_AWAIT_MILLIS);
+        for (P4RuntimeChannel channel : channels) {
+            try {
+                if (!channel.getManagedChannel().awaitTermination(
+                        Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    channel.getManagedChannel().shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                channel.getManagedChannel().shutdownNow();
+            }
+        }
+        LOG.info("Closed {} gRPC channels.", channels.size());
+    }
+
+    private static final class Endpoint {
+        private final String ip;
+        private final Integer port;
+        private final Assignment assignment;
+        private final AtomicReferenceArray<P4RuntimeChannel> stripes;
+        private final AtomicInteger next = new AtomicInteger();
+
+        private Endpoint(String ip, Integer port, int channels, Assignment assignment) {
+            this.ip = ip;
+            this.port = port;
+            this.assignment = assignment;
+            this.stripes = new AtomicReferenceArray<>(channels);
+        }
+
+        private int index(Long deviceId) {
+            int hash = assignment == Assignment.ROUND_ROBIN || deviceId == null
+                    ? next.getAndIncrement() : Long.hashCode(deviceId);
+            return (hash & Integer.MAX_VALUE) % stripes.length();
+        }
+
+        /**
+         * The gRPC channel connects lazily, so building one which loses the
+         * race costs no connection.
+         */
+        private P4RuntimeChannel stripe(int index) {
+            P4RuntimeChannel channel = stripes.get(index);
+            if (channel != null) {
+                return channel;
+            }
+
+            P4RuntimeChannel created = new P4RuntimeChannel(ip, port);
+            created.setIdleHandler(idle -> {
+                try {
+                    closer.schedule(() -> closeIdle(index, idle), idleCloseDelayMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    //the factory is closed
+                    closeIdle(index, idle);
+                }
+            });
+            if (stripes.compareAndSet(index, null, created)) {
+                return created;
+            }
+            created.shutdown();
+            return stripe(index);
+        }
+
+        private void closeIdle(int index, P4RuntimeChannel channel) {
+            if (channel.closeIfIdle()) {
+                stripes.compareAndSet(index, channel, null);
+            }
+        }
     }
 }
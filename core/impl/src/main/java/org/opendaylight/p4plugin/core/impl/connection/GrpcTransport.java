@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.connection;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.netty.NettyChannelBuilder;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport shared by all the P4 runtime channels, one Netty event loop group,
+ * epoll when the native transport loads and NIO otherwise, and one fixed size
+ * executor for the gRPC callbacks, so the number of threads does not grow with
+ * the number of channels. Configure it before the first channel is created.
+ */
+public class GrpcTransport {
+    private static final Logger LOG = LoggerFactory.getLogger(GrpcTransport.class);
+    private static GrpcTransport singleton = new GrpcTransport();
+    private int eventLoopThreads = 0;
+    private int executorThreads = 16;
+    private int flowControlWindow = NettyChannelBuilder.DEFAULT_FLOW_CONTROL_WINDOW;
+    private int maxInboundMessageSize = 4 * 1024 * 1024;
+    private EventLoopGroup eventLoopGroup;
+    private Class<? extends Channel> channelType;
+    private ExecutorService executor;
+
+    private GrpcTransport() {}
+
+    public static GrpcTransport getInstance() {
+        return singleton;
+    }
+
+    /**
+     * @param eventLoopThreads Netty event loop threads, 0 means the Netty default.
+     * @param executorThreads gRPC callback executor threads.
+     * @param flowControlWindow HTTP/2 flow control window in bytes.
+     * @param maxInboundMessageSize largest response message in bytes.
+     */
+    public synchronized void configure(int eventLoopThreads, int executorThreads,
+                                       int flowControlWindow, int maxInboundMessageSize) {
+        this.eventLoopThreads = eventLoopThreads;
+        this.executorThreads = executorThreads;
+        this.flowControlWindow = flowControlWindow;
+        this.maxInboundMessageSize = maxInboundMessageSize;
+    }
+
+    /**
+     * A plaintext channel builder bound to the shared event loop group and executor.
+     */
+    public synchronized NettyChannelBuilder newChannelBuilder(String ip, Integer port) {
+        if (eventLoopGroup == null) {
+            start();
+        }
+        return NettyChannelBuilder.forAddress(ip, port)
+                .eventLoopGroup(eventLoopGroup)
+                .channelType(channelType)
+                .executor(executor)
+                .flowControlWindow(flowControlWindow)
+                .maxInboundMessageSize(maxInboundMessageSize)
+                .usePlaintext(true);
+    }
+
+    private void start() {
+        ThreadFactory eventLoopFactory = new ThreadFactoryBuilder()
+                .setNameFormat("p4plugin-grpc-event-loop-%d").setDaemon(true).build();
+        boolean epoll;
+        try {
+            epoll = Epoll.isAvailable();
+        } catch (LinkageError e) {
+            epoll = false;
+        }
+        if (epoll) {
+            eventLoopGroup = new EpollEventLoopGroup(eventLoopThreads, eventLoopFactory);
+            channelType = EpollSocketChannel.class;
+        } else {
+            eventLoopGroup = new NioEventLoopGroup(eventLoopThreads, eventLoopFactory);
+            channelType = NioSocketChannel.class;
+        }
+        executor = Executors.newFixedThreadPool(executorThreads, new ThreadFactoryBuilder()
+                .setNameFormat("p4plugin-grpc-executor-%d").setDaemon(true).build());
+        LOG.info("gRPC transport started, epoll = {}, executor threads = {}.", epoll, executorThreads);
+    }
+
+    /**
+     * Called once all the channels are shut down.
+     */
+    public synchronized void close() {
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+            executor.shutdown();
+            eventLoopGroup = null;
+            executor = null;
+        }
+    }
+}
@@ -10,49 +10,81 @@ package org.opendaylight.p4plugin.core.impl.connection;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
- * P4 runtime channel, including a gRPC channel and a list which records
- * the stubs. Multiple stubs can share the same channel.
+ * P4 runtime channel, including a gRPC channel and a count of the stubs using
+ * it. Multiple stubs can share the same channel. A stub retains the channel when
+ * it is created and releases it on shutdown, the count drops to -1 when the idle
+ * channel is closed, after that it cannot be retained again.
  */
 public class P4RuntimeChannel {
+    private static final int CLOSED = -1;
     private final ManagedChannel channel;
-    private final List<P4RuntimeStub> stubs;
+    private final AtomicInteger refCount = new AtomicInteger();
+    private volatile Consumer<P4RuntimeChannel> idleHandler;
 
     public P4RuntimeChannel(String ip, Integer port) {
-        this(ManagedChannelBuilder.forAddress(ip, port).usePlaintext(true));
+        this(GrpcTransport.getInstance().newChannelBuilder(ip, port));
     }
 
     private P4RuntimeChannel(ManagedChannelBuilder<?> channelBuilder) {
         channel = channelBuilder.build();
-        stubs = new ArrayList<>();
     }
 
     public ManagedChannel getManagedChannel() {
         return channel;
     }
 
-    public void addStub(P4RuntimeStub stub) {
-        stubs.add(stub);
+    /**
+     * Called when the last stub releases the channel.
+     */
+    void setIdleHandler(Consumer<P4RuntimeChannel> idleHandler) {
+        this.idleHandler = idleHandler;
     }
 
-    public void removeStub(P4RuntimeStub stub) {
-        stubs.remove(stub);
-        FlyweightFactory.getInstance().gc();
+    /**
+     * @return false if the channel is already closed.
+     */
+    boolean retain() {
+        while (true) {
+            int count = refCount.get();
+            if (count == CLOSED) {
+                return false;
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
     }
 
-    public Integer getStubsCount() {
-        return stubs.size();
+    void release() {
+        if (refCount.decrementAndGet() == 0) {
+            Consumer<P4RuntimeChannel> handler = idleHandler;
+            if (handler != null) {
+                handler.accept(this);
+            }
+        }
     }
 
-    public void shutdown() {
-        try {
-            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /**
+     * Close the channel if no stub has retained it in the meantime.
+     * @return true if the channel is closed.
+     */
+    boolean closeIfIdle() {
+        if (refCount.compareAndSet(0, CLOSED)) {
+            channel.shutdown();
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Ongoing calls are allowed to finish, the caller does not wait for them.
+     */
+    public void shutdown() {
+        refCount.set(CLOSED);
+        channel.shutdown();
     }
 }
@@ -7,18 +7,33 @@
  */
 package org.opendaylight.p4plugin.core.impl.connection;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
-import org.opendaylight.p4plugin.core.impl.NotificationServiceProvider;
 import org.opendaylight.p4plugin.core.impl.device.DeviceManager;
+import org.opendaylight.p4plugin.core.impl.device.PacketMetadataLayout;
 import org.opendaylight.p4plugin.core.impl.utils.Utils;
 import org.opendaylight.p4plugin.p4runtime.proto.*;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.P4PacketReceivedBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.util.Iterator;
-import java.util.concurrent.CountDownLatch;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * An abstract runtime stub, including blocking and async stubs, and encapsulates
@@ -26,18 +41,84 @@ import java.util.concurrent.TimeUnit;
  */
 public class P4RuntimeStub {
     private static final Logger LOG = LoggerFactory.getLogger(P4RuntimeStub.class);
+    private static final ScheduledExecutorService connectTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("p4plugin-connect-timer-%d").setDaemon(true).build());
+    private static volatile long connectTimeoutMillis = 1000;
+    private static volatile int packetLogSampleRate = 0;
+    private static volatile int packetOutQueueSize = 1024;
+    private static volatile PacketOutQueue.OverflowPolicy packetOutOverflowPolicy =
+            PacketOutQueue.OverflowPolicy.BLOCK;
+    private static volatile long packetOutBlockTimeoutMillis = 1000;
+    private final PacketCounters packetCounters = new PacketCounters();
+    private final AtomicLong packetLogTick = new AtomicLong();
+    private volatile PacketMetadataLayout packetInLayout;
+    private volatile Consumer<Throwable> streamLostHandler;
+    private volatile boolean closed;
+    private final AtomicBoolean released = new AtomicBoolean();
     private final P4RuntimeChannel runtimeChannel;
     private final P4RuntimeGrpc.P4RuntimeBlockingStub blockingStub;
     private final P4RuntimeGrpc.P4RuntimeStub asyncStub;
     private StreamChannel streamChannel;
 
     public P4RuntimeStub(String nodeId, Long deviceId, String ip, Integer port) {
-        runtimeChannel = FlyweightFactory.getInstance().getChannel(ip, port);
+        runtimeChannel = FlyweightFactory.getInstance().acquireChannel(ip, port, deviceId);
         blockingStub = P4RuntimeGrpc.newBlockingStub(runtimeChannel.getManagedChannel());
         asyncStub = P4RuntimeGrpc.newStub(runtimeChannel.getManagedChannel());
         streamChannel = new StreamChannel(nodeId, deviceId);
     }
 
+    /**
+     * At debug level one of every rate packets is logged in hex, 0 turns it off.
+     * At trace level every packet is logged.
+     */
+    public static void setPacketLogSampleRate(int rate) {
+        packetLogSampleRate = rate;
+    }
+
+    /**
+     * How long a stream without an arbitration response or an error is waited
+     * for, after that it is taken as connected, some servers never answer the
+     * arbitration update.
+     */
+    public static void setConnectTimeout(long timeoutMillis) {
+        connectTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Size and overflow policy of the packet-out queues of the stubs created afterwards.
+     */
+    public static void setPacketOutQueue(int size, PacketOutQueue.OverflowPolicy policy) {
+        packetOutQueueSize = size;
+        packetOutOverflowPolicy = policy;
+    }
+
+    /**
+     * How long a packet-out waits for room in a full queue under the block policy.
+     */
+    public static void setPacketOutBlockTimeout(long timeoutMillis) {
+        packetOutBlockTimeoutMillis = timeoutMillis;
+    }
+
+    public PacketCounters getPacketCounters() {
+        return packetCounters;
+    }
+
+    public int getPacketOutQueueDepth() {
+        return streamChannel.outbound.getDepth();
+    }
+
+    public long getPacketOutDropped() {
+        return streamChannel.outbound.getDropped();
+    }
+
+    private boolean shouldLogPacket() {
+        if (LOG.isTraceEnabled()) {
+            return true;
+        }
+        int rate = packetLogSampleRate;
+        return rate > 0 && LOG.isDebugEnabled() && packetLogTick.getAndIncrement() % rate == 0;
+    }
+
     private P4RuntimeGrpc.P4RuntimeBlockingStub getBlockingStub() {
         return blockingStub;
     }
@@ -47,18 +128,54 @@ public class P4RuntimeStub {
     }
 
     /**
-     * Open the bi-directional stream channel.
+     * Open the bi-directional stream channel, blocks until the switch answers.
      * @return The result of the stream channel connection.
      */
     public boolean connect() {
-        streamChannel.openStreamChannel();
-        return streamChannel.getStreamChannelState();
+        try {
+            return connectAsync().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Open the bi-directional stream channel.
+     * @return completed with true on the first arbitration response, with false
+     * if the stream fails or completes first.
+     */
+    public ListenableFuture<Boolean> connectAsync() {
+        if (closed) {
+            return Futures.immediateFuture(false);
+        }
+        return streamChannel.openStreamChannel();
     }
 
     public SetForwardingPipelineConfigResponse setPipelineConfig(SetForwardingPipelineConfigRequest request) {
         return getBlockingStub().setForwardingPipelineConfig(request);
     }
 
+    public ListenableFuture<SetForwardingPipelineConfigResponse> setPipelineConfigAsync(
+            SetForwardingPipelineConfigRequest request) {
+        SettableFuture<SetForwardingPipelineConfigResponse> future = SettableFuture.create();
+        getAsyncStub().setForwardingPipelineConfig(request, new StreamObserver<SetForwardingPipelineConfigResponse>() {
+            @Override
+            public void onNext(SetForwardingPipelineConfigResponse response) {
+                future.set(response);
+            }
+            @Override
+            public void onError(Throwable t) {
+                future.setException(t);
+            }
+            @Override
+            public void onCompleted() {}
+        });
+        return future;
+    }
+
     public GetForwardingPipelineConfigResponse getPipelineConfig(GetForwardingPipelineConfigRequest request) {
         return getBlockingStub().getForwardingPipelineConfig(request);
     }
@@ -67,24 +184,78 @@ public class P4RuntimeStub {
         return getBlockingStub().write(request);
     }
 
+    /**
+     * Write through the async stub, the returned future completes when the
+     * switch acknowledges the request, no thread is held during the round trip.
+     */
+    public ListenableFuture<WriteResponse> writeAsync(WriteRequest request) {
+        SettableFuture<WriteResponse> future = SettableFuture.create();
+        getAsyncStub().write(request, new StreamObserver<WriteResponse>() {
+            @Override
+            public void onNext(WriteResponse response) {
+                future.set(response);
+            }
+            @Override
+            public void onError(Throwable t) {
+                future.setException(t);
+            }
+            @Override
+            public void onCompleted() {}
+        });
+        return future;
+    }
+
     public Iterator<ReadResponse> read(ReadRequest request) {
         return getBlockingStub().read(request);
     }
 
     /**
-     * Send packet through stream channel, not support metadata now.
+     * Send packet through stream channel.
+     * @param metadata packet_out metadata, encoded by the device packet-out layout.
      * @param payload
+     * @return false if the packet is dropped by the packet-out queue.
+     */
+    public boolean transmitPacket(List<PacketMetadata> metadata, byte[] payload) {
+        return streamChannel.transmitPacket(metadata, payload);
+    }
+
+    /**
+     * Layout used to decode the packet_in metadata, set once the P4Info is known.
+     */
+    public void setPacketInLayout(PacketMetadataLayout packetInLayout) {
+        this.packetInLayout = packetInLayout;
+    }
+
+    /**
+     * Called when the stream channel fails or is completed by the switch, the
+     * cause is null on completion. Without a handler the device is removed.
      */
-    public void transmitPacket(byte[] payload) {
-        streamChannel.transmitPacket(payload);
+    public void setStreamLostHandler(Consumer<Throwable> streamLostHandler) {
+        this.streamLostHandler = streamLostHandler;
     }
 
     public void sendMasterArbitration() {
         streamChannel.sendMasterArbitration();
     }
 
+    /**
+     * Half-close the stream channel but keep the stub, connectAsync opens a new one.
+     * The callbacks still coming from the closed stream are ignored.
+     */
+    public void closeStream() {
+        streamChannel.closeStream();
+    }
+
+    /**
+     * Close the stream channel and release the gRPC channel, the stub is not
+     * used afterwards.
+     */
     public void shutdown() {
+        closed = true;
         streamChannel.shutdown();
+        if (released.compareAndSet(false, true)) {
+            runtimeChannel.release();
+        }
     }
 
     /**
@@ -97,23 +268,15 @@ public class P4RuntimeStub {
     private class StreamChannel {
         private final Long deviceId;
         private final String nodeId;
-        private StreamObserver<StreamMessageRequest> observer;
-        private CountDownLatch countDownLatch;
+        private final PacketOutQueue outbound;
+        //bumped by every open and close, a callback of an older stream is stale
+        private final AtomicInteger generation = new AtomicInteger();
 
         private StreamChannel(String nodeId, Long deviceId) {
             this.deviceId = deviceId;
             this.nodeId = nodeId;
-        }
-
-        boolean getStreamChannelState() {
-            boolean state = true;
-            try {
-                state = !countDownLatch.await(1, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                LOG.info("Get stream channel state exception.");
-                e.printStackTrace();
-            }
-            return state;
+            this.outbound = new PacketOutQueue(packetOutQueueSize, packetOutOverflowPolicy,
+                    packetOutBlockTimeoutMillis, packetCounters);
         }
 
         /**
@@ -128,82 +291,149 @@ public class P4RuntimeStub {
             masterArbitrationBuilder.setDeviceId(deviceId);
             masterArbitrationBuilder.setElectionId(electionIdBuilder);
             requestBuilder.setArbitration(masterArbitrationBuilder);
-            observer.onNext(requestBuilder.build());
+            outbound.sendControl(requestBuilder.build());
         }
 
         /**
-         * Not support metadata in p4_v14, we will support it in the near future.
+         * The payload is wrapped without a copy, the caller hands over the array,
+         * the binding getters already return a private copy of it.
          */
-        private void transmitPacket(byte[] payload) {
-            StreamMessageRequest.Builder requestBuilder = StreamMessageRequest.newBuilder();
-            PacketOut.Builder packetOutBuilder = PacketOut.newBuilder();
-            packetOutBuilder.setPayload(ByteString.copyFrom(payload));
-            //metadataList.forEach(packetOutBuilder::addMetadata);
-            requestBuilder.setPacket(packetOutBuilder);
-            observer.onNext(requestBuilder.build());
-            //For debug
-            LOG.info("Transmit packet = {}.", Utils.bytesToHexString(payload));
+        private boolean transmitPacket(List<PacketMetadata> metadata, byte[] payload) {
+            PacketOut packetOut = PacketOut.newBuilder()
+                    .setPayload(UnsafeByteOperations.unsafeWrap(payload))
+                    .addAllMetadata(metadata)
+                    .build();
+            boolean accepted = outbound.send(StreamMessageRequest.newBuilder().setPacket(packetOut).build());
+            if (shouldLogPacket()) {
+                LOG.debug("Transmit packet to node = {}, accepted = {}, body = {}.",
+                        nodeId, accepted, Utils.bytesToHexString(payload));
+            }
+            return accepted;
+        }
+
+        private boolean isCurrent(int streamGeneration) {
+            return generation.get() == streamGeneration;
         }
 
-        private void onPacketReceived(StreamMessageResponse response) {
+        private void onPacketReceived(StreamMessageResponse response, SettableFuture<Boolean> connected) {
             switch(response.getUpdateCase()) {
                 case PACKET: {
-                    P4PacketReceivedBuilder builder = new P4PacketReceivedBuilder();
-                    byte[] payload = response.getPacket().getPayload().toByteArray();
-                    builder.setNodeId(nodeId);
-                    builder.setPayload(payload);
-                    NotificationServiceProvider.getInstance().notify(builder.build());
-                    //For debug
-                    LOG.info("Receive packet from node = {}, body = {}.", nodeId, Utils.bytesToHexString(payload));
+                    PacketIn packet = response.getPacket();
+                    ByteString payload = packet.getPayload();
+                    if (PacketInDispatcher.getInstance().dispatch(nodeId, packet, packetInLayout)) {
+                        packetCounters.onPacketIn(payload.size());
+                    } else {
+                        packetCounters.onPacketInDropped();
+                    }
+                    if (shouldLogPacket()) {
+                        LOG.debug("Receive packet from node = {}, body = {}.",
+                                nodeId, Utils.bytesToHexString(payload.toByteArray()));
+                    }
+                    break;
+                }
+                case ARBITRATION: {
+                    MasterArbitrationUpdate arbitration = response.getArbitration();
+                    if (arbitration.getStatus().getCode() != 0) {
+                        LOG.info("Node = {} arbitration status = {}, {}.", nodeId,
+                                arbitration.getStatus().getCode(), arbitration.getStatus().getMessage());
+                    }
+                    if (connected.set(true)) {
+                        LOG.info("Node = {} stream channel connected.", nodeId);
+                    }
                     break;
                 }
-                case ARBITRATION:
                 case UPDATE_NOT_SET:
                 default:break;
             }
         }
 
-        private void onStreamChannelError(Throwable t) {
-            runtimeChannel.removeStub(P4RuntimeStub.this);
-            DeviceManager.getInstance().removeDevice(nodeId);
-            countDownLatch.countDown();
+        private void onStreamChannelError(Throwable t, int streamGeneration, SettableFuture<Boolean> connected) {
+            connected.set(false);
+            if (!isCurrent(streamGeneration)) {
+                LOG.debug("Stale stream channel of node = {} on error, ignored.", nodeId);
+                return;
+            }
+            outbound.close(false);
             LOG.info("Stream channel on error, reason = {}, backtrace = {}.", t.getMessage(), t);
+            if (!closed) {
+                Consumer<Throwable> handler = streamLostHandler;
+                if (handler != null) {
+                    handler.accept(t);
+                } else {
+                    P4RuntimeStub.this.shutdown();
+                    DeviceManager.getInstance().removeDevice(nodeId);
+                }
+            }
         }
 
-        private void onStreamChannelCompleted() {
-            runtimeChannel.removeStub(P4RuntimeStub.this);
-            countDownLatch.countDown();
+        private void onStreamChannelCompleted(int streamGeneration, SettableFuture<Boolean> connected) {
+            connected.set(false);
+            if (!isCurrent(streamGeneration)) {
+                LOG.debug("Stale stream channel of node = {} on complete, ignored.", nodeId);
+                return;
+            }
+            outbound.close(false);
             LOG.info("Stream channel on complete.");
+            if (!closed) {
+                Consumer<Throwable> handler = streamLostHandler;
+                if (handler != null) {
+                    handler.accept(null);
+                } else {
+                    P4RuntimeStub.this.shutdown();
+                }
+            }
         }
 
         /**
          * Each P4RuntimeStub needs to open a bidirectional stream connection to the server
          * using the streamChannel RPC, the connector should advertise its election id right
-         * away using a MasterArbitrationUpdate message.
+         * away using a MasterArbitrationUpdate message, the switch answers with its own,
+         * which completes the returned future. The future and the generation belong
+         * to this call, a late callback of the previous stream touches neither the
+         * packet-out queue nor the connect future of this one.
          */
-        void openStreamChannel() {
-            runtimeChannel.addStub(P4RuntimeStub.this);
-            countDownLatch = new CountDownLatch(1);
-            StreamObserver<StreamMessageResponse> response = new StreamObserver<StreamMessageResponse>() {
+        ListenableFuture<Boolean> openStreamChannel() {
+            SettableFuture<Boolean> future = SettableFuture.create();
+            int streamGeneration = generation.incrementAndGet();
+            ClientResponseObserver<StreamMessageRequest, StreamMessageResponse> response =
+                    new ClientResponseObserver<StreamMessageRequest, StreamMessageResponse>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<StreamMessageRequest> requestStream) {
+                    outbound.bind(requestStream);
+                }
                 @Override
                 public void onNext(StreamMessageResponse response) {
-                    onPacketReceived(response);
+                    onPacketReceived(response, future);
                 }
                 @Override
                 public void onError(Throwable t) {
-                    onStreamChannelError(t);
+                    onStreamChannelError(t, streamGeneration, future);
                 }
                 @Override
                 public void onCompleted() {
-                    onStreamChannelCompleted();
+                    onStreamChannelCompleted(streamGeneration, future);
                 }
             };
-            observer = getAsyncStub().streamChannel(response);
+            getAsyncStub().streamChannel(response);
             sendMasterArbitration();
+
+            ScheduledFuture<?> timeout = connectTimer.schedule(() -> {
+                if (future.set(true)) {
+                    LOG.info("No arbitration response from node = {} in {} ms, taken as connected.",
+                            nodeId, connectTimeoutMillis);
+                }
+            }, connectTimeoutMillis, TimeUnit.MILLISECONDS);
+            future.addListener(() -> timeout.cancel(false), MoreExecutors.directExecutor());
+            return future;
+        }
+
+        void closeStream() {
+            generation.incrementAndGet();
+            outbound.close(true);
         }
 
         void shutdown() {
-            observer.onCompleted();
+            outbound.close(true);
         }
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.connection;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Packet-in and packet-out counters of one device, updated on the packet path
+ * instead of logging every packet.
+ */
+public class PacketCounters {
+    private final LongAdder packetsIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder packetsInDropped = new LongAdder();
+    private final LongAdder packetsOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    void onPacketIn(int bytes) {
+        packetsIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    void onPacketInDropped() {
+        packetsInDropped.increment();
+    }
+
+    void onPacketOut(int bytes) {
+        packetsOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    public long getPacketsIn() {
+        return packetsIn.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * Packets dropped because the packet-in dispatcher lane was full.
+     */
+    public long getPacketsInDropped() {
+        return packetsInDropped.sum();
+    }
+
+    public long getPacketsOut() {
+        return packetsOut.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+}
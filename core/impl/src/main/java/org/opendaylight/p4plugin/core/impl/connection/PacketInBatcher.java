@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.connection;
+
+import org.opendaylight.p4plugin.core.impl.NotificationServiceProvider;
+import org.opendaylight.p4plugin.core.impl.device.PacketMetadataLayout;
+import org.opendaylight.p4plugin.p4runtime.proto.PacketIn;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.P4PacketsReceivedBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.p4.packets.received.Packet;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.p4.packets.received.PacketBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packet-in batcher of one dispatcher lane, it collects the packets per node and
+ * publishes them as one P4PacketsReceived notification when a node has maxPackets
+ * packets, or when the oldest pending packet has waited lingerNanos. Only used by
+ * the lane consumer thread, so it is not thread safe.
+ */
+class PacketInBatcher {
+    private final int maxPackets;
+    private final long lingerNanos;
+    private final Map<String, List<Packet>> pending = new LinkedHashMap<>();
+    private long deadline;
+
+    PacketInBatcher(int maxPackets, long lingerNanos) {
+        this.maxPackets = maxPackets;
+        this.lingerNanos = lingerNanos;
+    }
+
+    void add(String nodeId, PacketIn packet, PacketMetadataLayout layout) {
+        if (pending.isEmpty()) {
+            deadline = System.nanoTime() + lingerNanos;
+        }
+
+        PacketBuilder builder = new PacketBuilder().setPayload(packet.getPayload().toByteArray());
+        if (layout != null && packet.getMetadataCount() > 0) {
+            builder.setMetadata(layout.decode(packet.getMetadataList()));
+        }
+        List<Packet> packets = pending.computeIfAbsent(nodeId, k -> new ArrayList<>());
+        packets.add(builder.build());
+        if (packets.size() >= maxPackets) {
+            pending.remove(nodeId);
+            publish(nodeId, packets);
+        }
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Nanoseconds left before the pending packets are due.
+     */
+    long remainingNanos() {
+        return deadline - System.nanoTime();
+    }
+
+    void flushIfDue() {
+        if (!pending.isEmpty() && remainingNanos() <= 0) {
+            flush();
+        }
+    }
+
+    void flush() {
+        pending.forEach(PacketInBatcher::publish);
+        pending.clear();
+    }
+
+    private static void publish(String nodeId, List<Packet> packets) {
+        NotificationServiceProvider.getInstance().notify(new P4PacketsReceivedBuilder()
+                .setNodeId(nodeId)
+                .setPacket(packets)
+                .build());
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.connection;
+
+import org.opendaylight.p4plugin.core.impl.NotificationServiceProvider;
+import org.opendaylight.p4plugin.core.impl.PacketInSubscriptions;
+import org.opendaylight.p4plugin.core.impl.device.PacketMetadataLayout;
+import org.opendaylight.p4plugin.p4runtime.proto.PacketIn;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.P4PacketReceivedBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Packet-in dispatcher moves the notification publishing off the gRPC threads.
+ * Packets are put into one of several lanes chosen by the node id, each lane is
+ * a bounded ring of preallocated slots drained by its own consumer thread, so the
+ * packets of one node stay in order while different nodes are published in
+ * parallel. When a lane is full the packet is dropped, the stream is never blocked.
+ * Packets are handed to the matching PacketInSubscriptions first, the global
+ * notification is published only if publishUnfiltered is set, otherwise the
+ * packets no subscription matches are dropped before they are queued.
+ * With batching set, the lanes publish P4PacketsReceived notifications carrying
+ * the packets of one node instead of one notification per packet.
+ */
+public class PacketInDispatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(PacketInDispatcher.class);
+    private static final int DRAIN_BATCH = 64;
+    private static final long CLOSE_JOIN_MILLIS = 1000;
+    private static PacketInDispatcher singleton = new PacketInDispatcher();
+    private static volatile boolean publishUnfiltered = false;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+    private volatile Lane[] lanes;
+    private int batchMaxPackets;
+    private long batchLingerNanos;
+
+    private PacketInDispatcher() {}
+
+    public static PacketInDispatcher getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Start the consumer threads, 0 threads means the packets are published
+     * on the gRPC threads as before.
+     * @param threads number of lanes, one consumer thread each.
+     * @param capacity number of slots in each lane.
+     */
+    public synchronized void start(int threads, int capacity) {
+        if (lanes != null || threads <= 0) {
+            if (threads <= 0 && batchMaxPackets > 1) {
+                LOG.warn("Packet-in batching needs dispatcher threads, packets are published one by one.");
+            }
+            return;
+        }
+
+        Lane[] newLanes = new Lane[threads];
+        for (int i = 0; i < threads; i++) {
+            newLanes[i] = new Lane(i, capacity, batchMaxPackets > 1
+                    ? new PacketInBatcher(batchMaxPackets, batchLingerNanos) : null);
+            newLanes[i].consumer.start();
+        }
+        lanes = newLanes;
+        LOG.info("Packet-in dispatcher started, threads = {}, capacity = {}.", threads, capacity);
+    }
+
+    /**
+     * Stop the consumer threads, the packets still queued are counted as dropped.
+     */
+    public synchronized void close() {
+        Lane[] oldLanes = lanes;
+        lanes = null;
+        if (oldLanes == null) {
+            return;
+        }
+
+        for (Lane lane : oldLanes) {
+            lane.consumer.interrupt();
+        }
+        for (Lane lane : oldLanes) {
+            try {
+                lane.consumer.join(CLOSE_JOIN_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (lane.consumer.isAlive()) {
+                LOG.warn("Packet-in consumer {} did not stop in {} ms.", lane.consumer.getName(), CLOSE_JOIN_MILLIS);
+            }
+            dropped.add(lane.discard());
+        }
+    }
+
+    /**
+     * Batch the packet-in notifications, takes effect on the next start.
+     * @param maxPackets packets of one node in a notification, 0 or 1 turns batching off.
+     * @param lingerMillis longest time a packet waits for its batch to fill.
+     */
+    public synchronized void setBatching(int maxPackets, long lingerMillis) {
+        batchMaxPackets = maxPackets;
+        batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    }
+
+    /**
+     * Publish every packet-in as a P4PacketReceived notification, off by default.
+     * When off, only the PacketInSubscriptions see the packets.
+     */
+    public static void setPublishUnfiltered(boolean publish) {
+        publishUnfiltered = publish;
+    }
+
+    /**
+     * Hand over a received packet, called on the gRPC thread.
+     * @param layout packet_in layout of the device, null if it has none.
+     * @return false if the lane is full and the packet is dropped.
+     */
+    public boolean dispatch(String nodeId, PacketIn packet, PacketMetadataLayout layout) {
+        if (!publishUnfiltered && !PacketInSubscriptions.getInstance().matches(nodeId, packet, layout)) {
+            filtered.increment();
+            return true;
+        }
+
+        Lane[] current = lanes;
+        if (current == null) {
+            publish(nodeId, packet, layout);
+            return true;
+        }
+
+        Lane lane = current[(nodeId.hashCode() & Integer.MAX_VALUE) % current.length];
+        if (!lane.offer(nodeId, packet, layout)) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Packets dropped because a lane was full or the dispatcher was closed, all nodes.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Packets no subscription matched, dropped before they are queued.
+     */
+    public long getFiltered() {
+        return filtered.sum();
+    }
+
+    /**
+     * The highest number of packets waiting in any lane since start.
+     */
+    public int getHighWaterMark() {
+        Lane[] current = lanes;
+        int highWater = 0;
+        if (current != null) {
+            for (Lane lane : current) {
+                highWater = Math.max(highWater, lane.highWater);
+            }
+        }
+        return highWater;
+    }
+
+    private static void publish(String nodeId, PacketIn packet, PacketMetadataLayout layout) {
+        if (deliver(nodeId, packet, layout)) {
+            publishPacket(nodeId, packet, layout);
+        }
+    }
+
+    /**
+     * Hand the packet to the matching subscriptions.
+     * @return whether the packet is published as a notification as well.
+     */
+    private static boolean deliver(String nodeId, PacketIn packet, PacketMetadataLayout layout) {
+        PacketInSubscriptions subscriptions = PacketInSubscriptions.getInstance();
+        if (!subscriptions.isEmpty()) {
+            subscriptions.deliver(nodeId, packet, layout);
+        }
+        return publishUnfiltered;
+    }
+
+    private static void publishPacket(String nodeId, PacketIn packet, PacketMetadataLayout layout) {
+        P4PacketReceivedBuilder builder = new P4PacketReceivedBuilder();
+        builder.setNodeId(nodeId);
+        builder.setPayload(packet.getPayload().toByteArray());
+        if (layout != null && packet.getMetadataCount() > 0) {
+            builder.setMetadata(layout.decode(packet.getMetadataList()));
+        }
+        NotificationServiceProvider.getInstance().notify(builder.build());
+    }
+
+    private static final class Lane {
+        private final String[] nodeIds;
+        private final PacketIn[] packets;
+        private final PacketMetadataLayout[] layouts;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Thread consumer;
+        private final PacketInBatcher batcher;
+        private int head;
+        private int size;
+        private boolean closed;
+        private volatile int highWater;
+
+        private Lane(int index, int capacity, PacketInBatcher batcher) {
+            this.batcher = batcher;
+            nodeIds = new String[capacity];
+            packets = new PacketIn[capacity];
+            layouts = new PacketMetadataLayout[capacity];
+            consumer = new Thread(this::consume, "p4plugin-packet-in-" + index);
+            consumer.setDaemon(true);
+        }
+
+        private boolean offer(String nodeId, PacketIn packet, PacketMetadataLayout layout) {
+            lock.lock();
+            try {
+                if (closed || size == nodeIds.length) {
+                    return false;
+                }
+                int tail = (head + size) % nodeIds.length;
+                nodeIds[tail] = nodeId;
+                packets[tail] = packet;
+                layouts[tail] = layout;
+                size++;
+                if (size > highWater) {
+                    highWater = size;
+                }
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Close the lane and clear what is still queued.
+         * @return number of packets discarded.
+         */
+        private int discard() {
+            lock.lock();
+            try {
+                closed = true;
+                int discarded = size;
+                Arrays.fill(nodeIds, null);
+                Arrays.fill(packets, null);
+                Arrays.fill(layouts, null);
+                head = 0;
+                size = 0;
+                return discarded;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Take up to DRAIN_BATCH packets under one lock, then publish them
+         * outside of it, so the producers only wait for the copy.
+         */
+        private void consume() {
+            String[] batchNodeIds = new String[DRAIN_BATCH];
+            PacketIn[] batchPackets = new PacketIn[DRAIN_BATCH];
+            PacketMetadataLayout[] batchLayouts = new PacketMetadataLayout[DRAIN_BATCH];
+            while (!Thread.currentThread().isInterrupted()) {
+                int count = 0;
+                lock.lock();
+                try {
+                    while (size == 0) {
+                        if (batcher == null || batcher.isEmpty()) {
+                            notEmpty.await();
+                        } else if (notEmpty.awaitNanos(batcher.remainingNanos()) <= 0) {
+                            break;
+                        }
+                    }
+                    while (size > 0 && count < DRAIN_BATCH) {
+                        batchNodeIds[count] = nodeIds[head];
+                        batchPackets[count] = packets[head];
+                        batchLayouts[count] = layouts[head];
+                        nodeIds[head] = null;
+                        packets[head] = null;
+                        layouts[head] = null;
+                        head = (head + 1) % nodeIds.length;
+                        size--;
+                        count++;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    lock.unlock();
+                }
+
+                for (int i = 0; i < count; i++) {
+                    try {
+                        if (deliver(batchNodeIds[i], batchPackets[i], batchLayouts[i])) {
+                            if (batcher != null) {
+                                batcher.add(batchNodeIds[i], batchPackets[i], batchLayouts[i]);
+                            } else {
+                                publishPacket(batchNodeIds[i], batchPackets[i], batchLayouts[i]);
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        LOG.info("Publish packet-in failed, node = {}, reason = {}.", batchNodeIds[i], e.getMessage());
+                    }
+                    batchNodeIds[i] = null;
+                    batchPackets[i] = null;
+                    batchLayouts[i] = null;
+                }
+                if (batcher != null) {
+                    try {
+                        batcher.flushIfDue();
+                    } catch (RuntimeException e) {
+                        LOG.info("Publish packet-in batch failed, reason = {}.", e.getMessage());
+                    }
+                }
+            }
+
+            //the packets already taken from the ring are published, not lost
+            if (batcher != null) {
+                try {
+                    batcher.flush();
+                } catch (RuntimeException e) {
+                    LOG.info("Publish packet-in batch failed, reason = {}.", e.getMessage());
+                }
+            }
+        }
+    }
+}
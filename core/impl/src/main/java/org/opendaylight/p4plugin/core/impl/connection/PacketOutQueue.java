@@ -0,0 +1,199 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.connection;
+
+import io.grpc.stub.ClientCallStreamObserver;
+import org.opendaylight.p4plugin.p4runtime.proto.StreamMessageRequest;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Packet-out queue of one stream channel. Packets are written to the stream
+ * only while gRPC reports it ready, the others wait in a bounded queue which is
+ * drained by the on-ready handler, so packet-out follows what the switch takes
+ * instead of piling up in the Netty buffers. All the writes to the stream,
+ * arbitration included, go through here, the stream observer is not thread safe.
+ */
+public class PacketOutQueue {
+    public enum OverflowPolicy {
+        /**
+         * The caller waits for room in the queue, up to the block timeout.
+         */
+        BLOCK,
+        /**
+         * The oldest queued packet is dropped to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * The new packet is dropped.
+         */
+        REJECT
+    }
+
+    private final ArrayDeque<StreamMessageRequest> queue;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutNanos;
+    private final PacketCounters counters;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final LongAdder dropped = new LongAdder();
+    private ClientCallStreamObserver<StreamMessageRequest> stream;
+    private boolean closed;
+
+    /**
+     * @param blockTimeoutMillis longest wait for room under the BLOCK policy, the packet is dropped after it.
+     */
+    public PacketOutQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis, PacketCounters counters) {
+        this.queue = new ArrayDeque<>(capacity);
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        this.counters = counters;
+    }
+
+    /**
+     * Bind the request stream, called from ClientResponseObserver.beforeStart.
+     */
+    void bind(ClientCallStreamObserver<StreamMessageRequest> requestStream) {
+        lock.lock();
+        try {
+            stream = requestStream;
+            closed = false;
+            queue.clear();
+        } finally {
+            lock.unlock();
+        }
+        requestStream.setOnReadyHandler(this::drain);
+    }
+
+    /**
+     * Write a control message right away, ahead of the queued packets.
+     */
+    void sendControl(StreamMessageRequest request) {
+        lock.lock();
+        try {
+            stream.onNext(request);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return false if the packet is dropped by the overflow policy, or the stream is closed.
+     */
+    boolean send(StreamMessageRequest packet) {
+        lock.lock();
+        try {
+            if (closed) {
+                dropped.increment();
+                return false;
+            }
+
+            long remainingNanos = blockTimeoutNanos;
+            while (queue.size() >= capacity) {
+                switch (policy) {
+                    case BLOCK:
+                        //a switch which stops reading must not park the caller forever
+                        if (remainingNanos <= 0) {
+                            dropped.increment();
+                            return false;
+                        }
+                        remainingNanos = notFull.awaitNanos(remainingNanos);
+                        if (closed) {
+                            dropped.increment();
+                            return false;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        queue.poll();
+                        dropped.increment();
+                        break;
+                    case REJECT:
+                    default:
+                        dropped.increment();
+                        return false;
+                }
+            }
+            //a non-empty queue means an on-ready call is pending, keep the order
+            if (queue.isEmpty() && stream.isReady()) {
+                write(packet);
+            } else {
+                queue.offer(packet);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped.increment();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * On-ready handler, runs on the gRPC transport thread.
+     */
+    private void drain() {
+        lock.lock();
+        try {
+            boolean drained = false;
+            while (!closed && !queue.isEmpty() && stream.isReady()) {
+                write(queue.poll());
+                drained = true;
+            }
+            if (drained) {
+                notFull.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(StreamMessageRequest packet) {
+        stream.onNext(packet);
+        counters.onPacketOut(packet.getPacket().getPayload().size());
+    }
+
+    /**
+     * Drop what is queued and wake the blocked callers, the stream is gone.
+     * @param complete half-close the stream as well.
+     */
+    void close(boolean complete) {
+        lock.lock();
+        try {
+            boolean wasClosed = closed;
+            closed = true;
+            dropped.add(queue.size());
+            queue.clear();
+            notFull.signalAll();
+            if (complete && !wasClosed && stream != null) {
+                stream.onCompleted();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
@@ -7,7 +7,13 @@
  */
 package org.opendaylight.p4plugin.core.impl.device;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import org.opendaylight.p4plugin.core.impl.utils.Utils;
 import org.opendaylight.p4plugin.p4info.proto.P4Info;
@@ -17,60 +23,72 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Device manager is used to save the device info and provides the add/remove,
- * find, query and other methods, only one instance.
+ * find, query and other methods, only one instance. Devices are keyed by node
+ * id, with a second index on (ip, port, device id), both kept in step by add
+ * and remove, so every lookup is a single map access.
  */
 public class DeviceManager {
     private static final Logger LOG = LoggerFactory.getLogger(DeviceManager.class);
     private static DeviceManager singleton = new DeviceManager();
     private ConcurrentHashMap<String, P4Device> devices = new ConcurrentHashMap<>(); //nodeId<->P4Device
+    private ConcurrentHashMap<DeviceKey, String> nodeIds = new ConcurrentHashMap<>(); //ip:port:deviceId<->nodeId
+    private ConcurrentHashMap<String, ListenableFuture<P4Device>> connecting = new ConcurrentHashMap<>();
     private DeviceManager() {}
     public static DeviceManager getInstance() {
         return singleton;
     }
 
     public boolean isNodeExist(String nodeId) {
-        Optional<String> keyContainer = devices.keySet()
-                .stream()
-                .filter(k -> k.equals(nodeId))
-                .findFirst();
-        return keyContainer.isPresent();
+        return nodeId != null && devices.containsKey(nodeId);
     }
 
     public boolean isDeviceExist(String ip, Integer port, Long deviceId) {
-        Optional<String> keyContainer = devices.keySet()
-                .stream()
-                .filter(k -> devices.get(k).getDeviceId().equals(deviceId)
-                          && devices.get(k).getIp().equals(ip)
-                          && devices.get(k).getPort().equals(port))
-                .findFirst();
-        return keyContainer.isPresent();
+        return nodeIds.containsKey(new DeviceKey(ip, port, deviceId));
     }
 
+    /**
+     * The node id is already used by this very ip, port and device id.
+     */
     public boolean isDuplicateDevice(String nodeId, String ip, Integer port, Long deviceId) {
-        return isNodeExist(nodeId) && isDeviceExist(ip, port, deviceId);
+        return nodeId != null && nodeId.equals(nodeIds.get(new DeviceKey(ip, port, deviceId)));
     }
 
     public P4Device findDevice(String nodeId) {
-        P4Device device = null;
-        Optional<String> keyContainer = devices.keySet()
-                .stream()
-                .filter(k->k.equals(nodeId))
-                .findFirst();
-        if (keyContainer.isPresent()) {
-            device = devices.get(nodeId);
+        return nodeId == null ? null : devices.get(nodeId);
+    }
+
+    /**
+     * Take the (ip, port, device id) first, then the node id, so two concurrent
+     * adds can not both get either of them.
+     */
+    private boolean register(P4Device device) {
+        DeviceKey key = new DeviceKey(device.getIp(), device.getPort(), device.getDeviceId());
+        if (nodeIds.putIfAbsent(key, device.getNodeId()) != null) {
+            return false;
+        }
+        if (devices.putIfAbsent(device.getNodeId(), device) != null) {
+            nodeIds.remove(key, device.getNodeId());
+            return false;
+        }
+        return true;
+    }
+
+    private boolean unregister(P4Device device) {
+        if (devices.remove(device.getNodeId(), device)) {
+            nodeIds.remove(new DeviceKey(device.getIp(), device.getPort(), device.getDeviceId()), device.getNodeId());
+            return true;
         }
-        return device;
+        return false;
     }
 
     private P4Device newDevice(String nodeId, Long deviceId, String ip, Integer port,
-                               String runtimeFile, String configFile) throws IOException {
-        P4Info p4Info = Utils.parseRuntimeInfo(runtimeFile);
-        ByteString config = Utils.parseDeviceConfigInfo(configFile);
+                               P4Info p4Info, ByteString config) {
         P4Device.Builder builder = P4Device.newBuilder()
                 .setNodeId(nodeId)
                 .setDeviceId(deviceId)
@@ -83,37 +101,119 @@ public class DeviceManager {
 
     public P4Device addDevice(String nodeId, Long deviceId, String ip, Integer port,
                               String runtimeFile, String configFile) throws IOException {
+        try {
+            return addDeviceAsync(nodeId, deviceId, ip, port, runtimeFile, configFile).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOG.info("Add device = {} failed, reason = {}.", nodeId, e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The device is registered as Connecting right away, so the node id is taken,
+     * and moves to Connected when the switch answers the arbitration update. The
+     * runtime and config files are parsed on the caller thread.
+     * @return completed with the device, or null if it cannot be added or connected.
+     */
+    public ListenableFuture<P4Device> addDeviceAsync(String nodeId, Long deviceId, String ip, Integer port,
+                                                     String runtimeFile, String configFile) throws IOException {
         Preconditions.checkArgument(runtimeFile != null, "Runtime file is null.");
         //Preconditions.checkArgument(configFile != null, "Config file is null.");
+        return addDeviceAsync(nodeId, deviceId, ip, port,
+                Utils.parseRuntimeInfo(runtimeFile), Utils.parseDeviceConfigInfo(configFile));
+    }
+
+    /**
+     * Same as above with the runtime info and device config already parsed, so
+     * the devices running the same program can share them.
+     */
+    public ListenableFuture<P4Device> addDeviceAsync(String nodeId, Long deviceId, String ip, Integer port,
+                                                     P4Info p4Info, ByteString config) {
+        Preconditions.checkArgument(p4Info != null, "Runtime info is null.");
         String description = String.format("%s:%d:%s:%d", nodeId, deviceId, ip, port);
 
         if (isDuplicateDevice(nodeId, ip, port, deviceId)) {
             LOG.info("Duplicate device = {}.", description);
-            return findDevice(nodeId);
+            return duplicateOf(nodeId);
         }
 
         if (isNodeExist(nodeId) || isDeviceExist(ip, port, deviceId)) {
             LOG.info("Device = {} node or device is already existed.", description);
-            return null;
+            return Futures.immediateFuture(null);
         }
 
-        P4Device device = newDevice(nodeId, deviceId, ip, port, runtimeFile, configFile);
-        if (device.connectToDevice()) {
-            device.setDeviceState(P4Device.State.Connected);
-            devices.put(nodeId, device);
-            LOG.info("Add device = {} success.", description);
-            return device;
+        //published before the device is registered, so a duplicate add always finds it
+        SettableFuture<P4Device> added = SettableFuture.create();
+        if (connecting.putIfAbsent(nodeId, added) != null) {
+            LOG.info("Device = {} node or device is already existed.", description);
+            return Futures.immediateFuture(null);
         }
 
-        LOG.info("Connect to device = {} failed.", description);
-        return null;
+        P4Device device = newDevice(nodeId, deviceId, ip, port, p4Info, config);
+        device.setDeviceState(P4Device.State.Connecting);
+        if (!register(device)) {
+            connecting.remove(nodeId, added);
+            device.shutdown();
+            LOG.info("Device = {} node or device is already existed.", description);
+            return Futures.immediateFuture(null);
+        }
+
+        ListenableFuture<P4Device> result = connect(device, description);
+        Futures.addCallback(result, new FutureCallback<P4Device>() {
+            @Override
+            public void onSuccess(P4Device connected) {
+                connecting.remove(nodeId, added);
+                added.set(connected);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                connecting.remove(nodeId, added);
+                added.setException(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return added;
+    }
+
+    /**
+     * A repeated add of the same device gets the result of the first add while it
+     * is connecting, the device once it is connected, and null otherwise.
+     */
+    private ListenableFuture<P4Device> duplicateOf(String nodeId) {
+        ListenableFuture<P4Device> inFlight = connecting.get(nodeId);
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        P4Device device = findDevice(nodeId);
+        if (device != null && (device.getDeviceState() == P4Device.State.Connected
+                || device.getDeviceState() == P4Device.State.Configured)) {
+            return Futures.immediateFuture(device);
+        }
+        return Futures.immediateFuture(null);
+    }
+
+    private ListenableFuture<P4Device> connect(P4Device device, String description) {
+        return Futures.transform(device.connectToDeviceAsync(), (Function<Boolean, P4Device>) connected -> {
+            if (connected && device.getDeviceState() == P4Device.State.Connecting) {
+                device.setDeviceState(P4Device.State.Connected);
+                LOG.info("Add device = {} success.", description);
+                return device;
+            }
+            unregister(device);
+            device.shutdown();
+            LOG.info("Connect to device = {} failed.", description);
+            return null;
+        }, MoreExecutors.directExecutor());
     }
 
     public void removeDevice(String nodeId) {
         P4Device device = findDevice(nodeId);
-        if (device != null) {
+        if (device != null && unregister(device)) {
             device.shutdown();
-            devices.remove(nodeId);
             LOG.info("Device = {} removed.", device.getDescription());
         }
     }
@@ -129,10 +229,38 @@ public class DeviceManager {
 
     public List<String> queryNodes() {
         List<String> result = new ArrayList<>();
-        devices.keySet().forEach(node->{
-            P4Device device = devices.get(node);
-            result.add(device.getDescription());
-        });
+        devices.values().forEach(device -> result.add(device.getDescription()));
         return result;
     }
+
+    private static final class DeviceKey {
+        private final String ip;
+        private final Integer port;
+        private final Long deviceId;
+
+        private DeviceKey(String ip, Integer port, Long deviceId) {
+            this.ip = ip;
+            this.port = port;
+            this.deviceId = deviceId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DeviceKey)) {
+                return false;
+            }
+            DeviceKey other = (DeviceKey) o;
+            return Objects.equals(ip, other.ip)
+                    && Objects.equals(port, other.port)
+                    && Objects.equals(deviceId, other.deviceId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ip, port, deviceId);
+        }
+    }
 }
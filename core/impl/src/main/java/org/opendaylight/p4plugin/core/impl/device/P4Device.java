@@ -7,27 +7,56 @@
  */
 package org.opendaylight.p4plugin.core.impl.device;
 
+import com.google.common.base.Function;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import io.grpc.StatusRuntimeException;
 import org.opendaylight.p4plugin.core.impl.connection.P4RuntimeStub;
+import org.opendaylight.p4plugin.core.impl.connection.PacketCounters;
 import org.opendaylight.p4plugin.core.impl.utils.Utils;
+import org.opendaylight.p4plugin.core.impl.utils.ValueEncoder;
 import org.opendaylight.p4plugin.p4info.proto.P4Info;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.packet.metadata.Metadata;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.*;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.action.ActionParam;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.action.ActionParamBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.action.profile.group.GroupMember;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.action.profile.group.GroupMemberBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.match.fields.Field;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.match.fields.FieldBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.match.fields.field.MatchType;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.match.fields.field.match.type.*;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.table.entry.ActionType;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.read.action.profile.group.output.Group;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.read.action.profile.group.output.GroupBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.read.action.profile.member.output.Member;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.read.action.profile.member.output.MemberBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.read.table.entry.output.Entry;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.read.table.entry.output.EntryBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.table.entry.action.type.ACTIONPROFILEGROUP;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.table.entry.action.type.ACTIONPROFILEGROUPBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.table.entry.action.type.ACTIONPROFILEMEMBER;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.table.entry.action.type.ACTIONPROFILEMEMBERBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.table.entry.action.type.DIRECTACTION;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.table.entry.action.type.DIRECTACTIONBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.table.rev170808.write.batch.input.Update;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * The relationship between P4Device, P4RuntimeStub, P4RuntimeChannel and Stream channel
@@ -85,214 +114,60 @@ import java.util.Optional;
 public class P4Device {
     private static final Logger LOG = LoggerFactory.getLogger(P4Device.class);
     private P4RuntimeStub stub;
-    private P4Info runtimeInfo;
-    private ByteString deviceConfig;
+    private volatile P4Info runtimeInfo;
+    private volatile RuntimeInfoIndex runtimeIndex;
+    private volatile ByteString deviceConfig;
+    private volatile org.opendaylight.p4plugin.p4runtime.proto.ForwardingPipelineConfig pipelineConfig;
+    private volatile String pipelineCookie;
+    private volatile StagedPipeline stagedPipeline;
     private String ip;
     private Integer port;
     private Long deviceId;
     private String nodeId;
-    private State state = State.Unknown;
+    private volatile State state = State.Unknown;
+    private volatile WriteCoalescer writeCoalescer;
+    private final ShadowTableStore shadowStore = new ShadowTableStore();
+    private final ReconnectSupervisor reconnectSupervisor = new ReconnectSupervisor(this);
+    private static final int REPLAY_CHUNK_SIZE = 1000;
+    private volatile List<org.opendaylight.p4plugin.p4runtime.proto.Update> pendingReplay;
+    private volatile boolean shadowSeeded;
+    private final Object seedLock = new Object();
+    private static final String PIPELINE_COOKIE_KEY = "p4plugin-cookie";
     private P4Device() {}
 
     private int getTableId(String tableName) {
-        Optional<org.opendaylight.p4plugin.p4info.proto.Table> container =
-                runtimeInfo.getTablesList().stream()
-                .filter(table -> table.getPreamble().getName().equals(tableName))
-                .findFirst();
-        int result = 0;
-        if (container.isPresent()) {
-            result = container.get().getPreamble().getId();
-        }
-        return result;
+        RuntimeInfoIndex.TableInfo table = runtimeIndex.getTable(tableName);
+        return table == null ? 0 : table.getId();
     }
 
     private String getTableName(int tableId) {
-        Optional<org.opendaylight.p4plugin.p4info.proto.Table> container =
-                runtimeInfo.getTablesList()
-                .stream()
-                .filter(table -> table.getPreamble().getId() == tableId)
-                .findFirst();
-        String result = null;
-        if (container.isPresent()) {
-            result = container.get().getPreamble().getName();
-        }
-        return result;
-    }
-
-    private int getMatchFieldId(String tableName, String matchFieldName) {
-        Optional<org.opendaylight.p4plugin.p4info.proto.Table> tableContainer =
-                runtimeInfo.getTablesList()
-                .stream()
-                .filter(table -> table.getPreamble().getName().equals(tableName))
-                .findFirst();
-        int result = 0;
-        if (tableContainer.isPresent()) {
-            Optional<org.opendaylight.p4plugin.p4info.proto.MatchField> matchFieldContainer =
-                    tableContainer.get()
-                    .getMatchFieldsList()
-                    .stream()
-                    .filter(matchField -> matchField.getName().equals(matchFieldName))
-                    .findFirst();
-            if (matchFieldContainer.isPresent()) {
-                result = matchFieldContainer.get().getId();
-            }
-        }
-        return result;
+        RuntimeInfoIndex.TableInfo table = runtimeIndex.getTable(tableId);
+        return table == null ? null : table.getName();
     }
 
     private String getMatchFieldName(int tableId, int matchFieldId) {
-        Optional<org.opendaylight.p4plugin.p4info.proto.Table> tableContainer =
-                runtimeInfo.getTablesList()
-                .stream()
-                .filter(table -> table.getPreamble().getId() == tableId)
-                .findFirst();
-        String result = null;
-        if (tableContainer.isPresent()) {
-            Optional<org.opendaylight.p4plugin.p4info.proto.MatchField> matchFieldContainer =
-                    tableContainer.get()
-                    .getMatchFieldsList()
-                    .stream()
-                    .filter(matchField -> matchField.getId() == (matchFieldId))
-                    .findFirst();
-            if (matchFieldContainer.isPresent()) {
-                result = matchFieldContainer.get().getName();
-            }
-        }
-        return result;
-    }
-
-    private int getMatchFieldWidth(String tableName, String matchFieldName) {
-        Optional<org.opendaylight.p4plugin.p4info.proto.Table> tableContainer =
-                runtimeInfo.getTablesList()
-                .stream()
-                .filter(table -> table.getPreamble().getName().equals(tableName))
-                .findFirst();
-        int result = 0;
-        if (tableContainer.isPresent()) {
-            Optional<org.opendaylight.p4plugin.p4info.proto.MatchField> matchFieldContainer =
-                    tableContainer.get()
-                    .getMatchFieldsList()
-                    .stream()
-                    .filter(matchField -> matchField.getName().equals(matchFieldName))
-                    .findFirst();
-            if (matchFieldContainer.isPresent()) {
-                result = (matchFieldContainer.get().getBitwidth() + 7) / 8;
-            }
-        }
-        return result;
-    }
-
-    private int getActionId(String actionName) {
-        Optional<org.opendaylight.p4plugin.p4info.proto.Action> actionContainer =
-                runtimeInfo.getActionsList()
-                .stream()
-                .filter(action -> action.getPreamble().getName().equals(actionName))
-                .findFirst();
-        int result = 0;
-        if (actionContainer.isPresent()) {
-            result = actionContainer.get().getPreamble().getId();
-        }
-        return result;
+        RuntimeInfoIndex.TableInfo table = runtimeIndex.getTable(tableId);
+        RuntimeInfoIndex.FieldInfo field = table == null ? null : table.getField(matchFieldId);
+        return field == null ? null : field.getName();
     }
 
     private String getActionName(int actionId) {
-        Optional<org.opendaylight.p4plugin.p4info.proto.Action> actionContainer =
-                runtimeInfo.getActionsList()
-                .stream()
-                .filter(action -> action.getPreamble().getId() == actionId)
-                .findFirst();
-        String result = null;
-        if (actionContainer.isPresent()) {
-            result = actionContainer.get().getPreamble().getName();
-        }
-        return result;
-    }
-
-    private int getParamId(String actionName, String paramName) {
-        Optional<org.opendaylight.p4plugin.p4info.proto.Action> actionContainer =
-                runtimeInfo.getActionsList()
-                .stream()
-                .filter(action -> action.getPreamble().getName().equals(actionName))
-                .findFirst();
-        int result = 0;
-        if (actionContainer.isPresent()) {
-            Optional<org.opendaylight.p4plugin.p4info.proto.Action.Param> paramContainer =
-                    actionContainer.get()
-                    .getParamsList()
-                    .stream()
-                    .filter(param -> param.getName().equals(paramName))
-                    .findFirst();
-            if (paramContainer.isPresent()) {
-                result = paramContainer.get().getId();
-            }
-        }
-        return result;
+        RuntimeInfoIndex.ActionInfo action = runtimeIndex.getAction(actionId);
+        return action == null ? null : action.getName();
     }
 
     private String getParamName(int actionId, int paramId) {
-        Optional<org.opendaylight.p4plugin.p4info.proto.Action> actionContainer =
-                runtimeInfo.getActionsList()
-                .stream()
-                .filter(action -> action.getPreamble().getId() == actionId)
-                .findFirst();
-        String result = null;
-        if (actionContainer.isPresent()) {
-            Optional<org.opendaylight.p4plugin.p4info.proto.Action.Param> paramContainer =
-                    actionContainer.get()
-                    .getParamsList()
-                    .stream()
-                    .filter(param -> param.getId() == paramId)
-                    .findFirst();
-            if (paramContainer.isPresent()) {
-                result = paramContainer.get().getName();
-            }
-        }
-        return result;
-    }
-
-    private int getParamWidth(String actionName, String paramName) {
-        Optional<org.opendaylight.p4plugin.p4info.proto.Action> actionContainer =
-                runtimeInfo.getActionsList()
-                .stream()
-                .filter(action -> action.getPreamble().getName().equals(actionName))
-                .findFirst();
-        int result = 0;
-        if (actionContainer.isPresent()) {
-            Optional<org.opendaylight.p4plugin.p4info.proto.Action.Param> paramContainer =
-                    actionContainer.get()
-                    .getParamsList()
-                    .stream()
-                    .filter(param -> param.getName().equals(paramName))
-                    .findFirst();
-            if (paramContainer.isPresent()) {
-                result = (paramContainer.get().getBitwidth() + 7) / 8;
-            }
-        }
-        return result;
+        RuntimeInfoIndex.ActionInfo action = runtimeIndex.getAction(actionId);
+        RuntimeInfoIndex.FieldInfo param = action == null ? null : action.getParam(paramId);
+        return param == null ? null : param.getName();
     }
 
     private int getActionProfileId(String actionProfileName) {
-        int result = 0;
-        Optional<org.opendaylight.p4plugin.p4info.proto.ActionProfile> actionProfileContainer =
-                runtimeInfo.getActionProfilesList().stream()
-                .filter(actionProfile -> actionProfile.getPreamble().getName().equals(actionProfileName))
-                .findFirst();
-        if (actionProfileContainer.isPresent()) {
-            result = actionProfileContainer.get().getPreamble().getId();
-        }
-        return result;
+        return runtimeIndex.getActionProfileId(actionProfileName);
     }
 
     private String getActionProfileName(Integer actionProfileId) {
-        String result = null;
-        Optional<org.opendaylight.p4plugin.p4info.proto.ActionProfile> actionProfileContainer =
-                runtimeInfo.getActionProfilesList().stream()
-                .filter(actionProfile -> actionProfile.getPreamble().getId() == actionProfileId)
-                .findFirst();
-        if (actionProfileContainer.isPresent()) {
-            result = actionProfileContainer.get().getPreamble().getName();
-        }
-        return result;
+        return runtimeIndex.getActionProfileName(actionProfileId);
     }
 
     public Long getDeviceId() {
@@ -315,6 +190,10 @@ public class P4Device {
         return nodeId;
     }
 
+    public ShadowTableStore getShadowStore() {
+        return shadowStore;
+    }
+
     public void setDeviceState(State state) {
         this.state = state;
     }
@@ -328,39 +207,165 @@ public class P4Device {
         return stub.connect();
     }
 
+    /**
+     * @return completed with the result of the connection once the switch answers.
+     */
+    public ListenableFuture<Boolean> connectToDeviceAsync() {
+        return stub.connectAsync();
+    }
+
     public String getDescription() {
         return nodeId + ":" + deviceId + ":" + ip + ":" + port + ":" +state;
     }
 
+    void closeStream() {
+        stub.closeStream();
+    }
+
     public void shutdown() {
+        reconnectSupervisor.stop();
+        WriteCoalescer coalescer = writeCoalescer;
+        if (coalescer != null) {
+            coalescer.flush();
+        }
         stub.shutdown();
     }
 
-    public org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigResponse setPipelineConfig() {
-        org.opendaylight.p4plugin.p4runtime.proto.ForwardingPipelineConfig.Builder configBuilder =
-                org.opendaylight.p4plugin.p4runtime.proto.ForwardingPipelineConfig.newBuilder();
-        org.opendaylight.p4plugin.p4config.proto.P4DeviceConfig.Builder p4DeviceConfigBuilder =
-                org.opendaylight.p4plugin.p4config.proto.P4DeviceConfig.newBuilder();
-        if (deviceConfig != null) {
-            p4DeviceConfigBuilder.setDeviceData(deviceConfig);
+    /**
+     * Stream lost handler of the stub, a connected device is handed to the reconnect
+     * supervisor, a device still connecting is left to the one connecting it, the
+     * supervisor itself when it is reconnecting the device.
+     */
+    private void onStreamLost(Throwable cause) {
+        if (reconnectSupervisor.onLost()) {
+            return;
         }
-        if (runtimeInfo != null) {
-            configBuilder.setP4Info(runtimeInfo);
+        State lost = state;
+        if (lost != State.Connected && lost != State.Configured) {
+            return;
         }
-        configBuilder.setP4DeviceConfig(p4DeviceConfigBuilder.build().toByteString());
-        configBuilder.setDeviceId(deviceId);
+        if (ReconnectSupervisor.isEnabled()) {
+            reconnectSupervisor.start(lost == State.Configured);
+        } else {
+            DeviceManager.getInstance().removeDevice(nodeId);
+        }
+    }
+
+    /**
+     * Called by the reconnect supervisor once the stream is back. The pipeline is
+     * pushed again only if the switch no longer has it, and then the entries known
+     * to the shadow store are written again. A switch which kept its pipeline is
+     * taken to have kept its entries as well. When the push or a replay chunk fails
+     * the whole replay is kept, the next attempt pushes and replays it again.
+     * @param configured whether the pipeline had been pushed before the loss.
+     * @return the state to restore, null if the restore failed.
+     */
+    State restore(boolean configured) {
+        if (!configured) {
+            return State.Connected;
+        }
+
+        List<org.opendaylight.p4plugin.p4runtime.proto.Update> replay = pendingReplay;
+        if (replay == null) {
+            if (isPipelineCurrent()) {
+                LOG.info("Device = {} kept its pipeline, nothing to restore.", nodeId);
+                if (!shadowSeeded) {
+                    ensureShadowSeeded();
+                }
+                return State.Configured;
+            }
+            if (!shadowSeeded) {
+                LOG.warn("Device = {} shadow store was never seeded, only the entries written since are restored.",
+                        nodeId);
+            }
+            replay = shadowStore.toReplayUpdates();
+        }
+
+        //the push empties the shadow store, the replay is kept here until it is all written
+        pendingReplay = replay;
+        if (pushPipelineConfig() == null) {
+            LOG.info("Device = {} pipeline push failed, {} entries not restored.", nodeId, replay.size());
+            return null;
+        }
+
+        int restored = 0;
+        for (int from = 0; from < replay.size(); from += REPLAY_CHUNK_SIZE) {
+            List<org.opendaylight.p4plugin.p4runtime.proto.Update> chunk =
+                    replay.subList(from, Math.min(replay.size(), from + REPLAY_CHUNK_SIZE));
+            org.opendaylight.p4plugin.p4runtime.proto.WriteRequest request =
+                    org.opendaylight.p4plugin.p4runtime.proto.WriteRequest.newBuilder()
+                    .setDeviceId(deviceId)
+                    .addAllUpdates(chunk)
+                    .build();
+            if (write(request) != null) {
+                chunk.forEach(shadowStore::apply);
+                restored += chunk.size();
+            }
+        }
+        if (restored < replay.size()) {
+            LOG.warn("Device = {} pipeline pushed again, only {} of {} entries restored.",
+                    nodeId, restored, replay.size());
+            return null;
+        }
+        pendingReplay = null;
+        LOG.info("Device = {} pipeline pushed again, {} entries restored.", nodeId, restored);
+        return State.Configured;
+    }
+
+    /**
+     * Opt in to write coalescing, single table entry and action profile writes are
+     * collected for up to maxUpdates updates or lingerMicros microseconds and sent
+     * in one write request. A maxUpdates less than 2 turns coalescing off.
+     */
+    public void setWriteCoalescing(int maxUpdates, long lingerMicros) {
+        WriteCoalescer previous = writeCoalescer;
+        writeCoalescer = maxUpdates > 1 ? new WriteCoalescer(this, maxUpdates, lingerMicros) : null;
+        if (previous != null) {
+            previous.flush();
+        }
+    }
+
+    /**
+     * Push the pipeline unless the switch already runs it, see isPipelineCurrent.
+     * A skipped push keeps the entries on the switch, they may have been written
+     * before this controller started, so the shadow store is seeded from them on
+     * the first cached read, see ensureShadowSeeded.
+     * @param force push even if the switch already runs this pipeline.
+     */
+    public PipelinePush pushPipeline(boolean force) {
+        if (!force && isPipelineCurrent()) {
+            shadowStore.clear();
+            shadowSeeded = false;
+            setDeviceState(State.Configured);
+            LOG.info("Device = {} already runs pipeline {}, push skipped.", nodeId, pipelineCookie);
+            return PipelinePush.SKIPPED;
+        }
+        return setPipelineConfig() != null ? PipelinePush.PUSHED : PipelinePush.FAILED;
+    }
+
+    public org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigResponse setPipelineConfig() {
+        org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigResponse response = pushPipelineConfig();
+        if (response != null) {
+            setDeviceState(State.Configured);
+        }
+        return response;
+    }
+
+    /**
+     * Push the pipeline and empty the shadow store, the device state is left to
+     * the caller, restore keeps the device out of Configured until the replay is done.
+     */
+    private org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigResponse pushPipelineConfig() {
         org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest request =
-                org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest.newBuilder()
-                .setAction(org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest.Action
-                        .VERIFY_AND_COMMIT)
-                .addConfigs(configBuilder.build())
-                .build();
+                toPipelineConfigRequest(org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest
+                        .Action.VERIFY_AND_COMMIT);
         org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigResponse response;
 
         try {
             /* response is empty now */
             response = stub.setPipelineConfig(request);
-            setDeviceState(State.Configured);
+            shadowStore.clear();
+            shadowSeeded = true;
             return response;
         } catch (StatusRuntimeException e) {
             LOG.info("Set pipeline config RPC failed: {}", e.getStatus());
@@ -369,6 +374,231 @@ public class P4Device {
         return null;
     }
 
+    /**
+     * Set pipeline config through the async stub, for the staged rollout. After a
+     * successful VERIFY_AND_COMMIT or COMMIT the device runs the new pipeline and
+     * its shadow store is emptied, VERIFY_AND_SAVE leaves the device as it is.
+     * A COMMIT also makes the staged program, if any, the one of this device.
+     */
+    public ListenableFuture<org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigResponse>
+            setPipelineConfigAsync(org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest
+                                           .Action action) {
+        StagedPipeline staged = stagedPipeline;
+        ListenableFuture<org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigResponse> response =
+                stub.setPipelineConfigAsync(toPipelineConfigRequest(action));
+        if (action == org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest.Action.COMMIT
+                || action == org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest
+                        .Action.VERIFY_AND_COMMIT) {
+            Futures.addCallback(response,
+                    new FutureCallback<org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigResponse>() {
+                @Override
+                public void onSuccess(org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigResponse r) {
+                    if (staged != null && action == org.opendaylight.p4plugin.p4runtime.proto
+                            .SetForwardingPipelineConfigRequest.Action.COMMIT) {
+                        adoptPipeline(staged);
+                    }
+                    shadowStore.clear();
+                    shadowSeeded = true;
+                    setDeviceState(State.Configured);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    LOG.info("Set pipeline config RPC failed: action = {}, reason = {}.", action, t.getMessage());
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        return response;
+    }
+
+    /**
+     * A COMMIT carries the device id only, it realizes the config saved before.
+     * VERIFY and VERIFY_AND_SAVE carry the staged program if there is one,
+     * VERIFY_AND_COMMIT always carries the program the device runs.
+     */
+    private org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest toPipelineConfigRequest(
+            org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest.Action action) {
+        if (action == org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest.Action.COMMIT) {
+            return org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest.newBuilder()
+                    .setAction(action)
+                    .addConfigs(org.opendaylight.p4plugin.p4runtime.proto.ForwardingPipelineConfig.newBuilder()
+                            .setDeviceId(deviceId))
+                    .build();
+        }
+
+        StagedPipeline staged = stagedPipeline;
+        boolean useStaged = staged != null && action != org.opendaylight.p4plugin.p4runtime.proto
+                .SetForwardingPipelineConfigRequest.Action.VERIFY_AND_COMMIT;
+        return org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest.newBuilder()
+                .setAction(action)
+                .addConfigs(useStaged ? staged.config : pipelineConfig)
+                .build();
+    }
+
+    /**
+     * Stage a new program for a rollout, the VERIFY_AND_SAVE sends it and the
+     * COMMIT makes it the program of this device. Null keeps the one loaded now.
+     */
+    public void stagePipeline(P4Info p4Info, ByteString config) {
+        P4Info info = p4Info == null ? runtimeInfo : p4Info;
+        ByteString data = config == null ? deviceConfig : config;
+        String cookie = toPipelineCookie(info, data);
+        stagedPipeline = new StagedPipeline(info, data, info == null ? null : new RuntimeInfoIndex(info),
+                cookie, toPipelineConfig(info, data, cookie));
+    }
+
+    /**
+     * Drop the staged program of a rollout that did not commit.
+     */
+    public void discardStagedPipeline() {
+        stagedPipeline = null;
+    }
+
+    private void adoptPipeline(StagedPipeline staged) {
+        runtimeInfo = staged.runtimeInfo;
+        deviceConfig = staged.deviceConfig;
+        runtimeIndex = staged.runtimeIndex;
+        pipelineCookie = staged.cookie;
+        pipelineConfig = staged.config;
+        if (runtimeIndex != null) {
+            stub.setPacketInLayout(runtimeIndex.getPacketInLayout());
+        }
+        if (stagedPipeline == staged) {
+            stagedPipeline = null;
+        }
+        LOG.info("Device = {} committed staged pipeline {}.", nodeId, pipelineCookie);
+    }
+
+    /**
+     * Seed the shadow store if it is not yet, called by the cached reads, so a
+     * skipped push does not pay for a full read nobody asked for.
+     * @return false if the store cannot be trusted, the read goes to the switch.
+     */
+    boolean ensureShadowSeeded() {
+        if (shadowSeeded) {
+            return true;
+        }
+        synchronized (seedLock) {
+            return shadowSeeded || seedShadowStore();
+        }
+    }
+
+    /**
+     * Add everything the switch holds to the shadow store, read in one request.
+     * Until that succeeds the store is not trusted, cached reads go to the switch.
+     * @return false if the read failed.
+     */
+    private boolean seedShadowStore() {
+        org.opendaylight.p4plugin.p4runtime.proto.ReadRequest request =
+                org.opendaylight.p4plugin.p4runtime.proto.ReadRequest.newBuilder()
+                .setDeviceId(deviceId)
+                .addEntities(org.opendaylight.p4plugin.p4runtime.proto.Entity.newBuilder()
+                        .setActionProfileMember(org.opendaylight.p4plugin.p4runtime.proto.ActionProfileMember
+                                .getDefaultInstance()))
+                .addEntities(org.opendaylight.p4plugin.p4runtime.proto.Entity.newBuilder()
+                        .setActionProfileGroup(org.opendaylight.p4plugin.p4runtime.proto.ActionProfileGroup
+                                .getDefaultInstance()))
+                .addEntities(org.opendaylight.p4plugin.p4runtime.proto.Entity.newBuilder()
+                        .setTableEntry(org.opendaylight.p4plugin.p4runtime.proto.TableEntry.getDefaultInstance()))
+                .build();
+
+        List<org.opendaylight.p4plugin.p4runtime.proto.Update> updates = new ArrayList<>();
+        try (ReadEntityIterator entities = readEntities(request)) {
+            entities.forEachRemaining(entity -> updates.add(org.opendaylight.p4plugin.p4runtime.proto.Update
+                    .newBuilder()
+                    .setType(org.opendaylight.p4plugin.p4runtime.proto.Update.Type.INSERT)
+                    .setEntity(entity)
+                    .build()));
+        } catch (StatusRuntimeException e) {
+            LOG.info("Device = {} shadow store not seeded, read failed: {}.", nodeId, e.getStatus());
+            return false;
+        }
+
+        //the writes acknowledged meanwhile are in the store already, or in the read
+        updates.forEach(shadowStore::apply);
+        shadowSeeded = true;
+        LOG.info("Device = {} shadow store seeded with {} entities.", nodeId, updates.size());
+        return true;
+    }
+
+    /**
+     * Whether the shadow store is known to match the switch, see seedShadowStore.
+     */
+    public boolean isShadowSeeded() {
+        return shadowSeeded;
+    }
+
+    /**
+     * Whether the switch runs this pipeline already. The device config pushed by
+     * the plugin carries the content hash as a cookie in its extras, which survives
+     * controller restarts; a device config sent by someone else must match byte for
+     * byte. Any failure of the get counts as not current.
+     */
+    public boolean isPipelineCurrent() {
+        org.opendaylight.p4plugin.p4runtime.proto.GetForwardingPipelineConfigResponse current = getPipelineConfig();
+        if (current == null || current.getConfigsCount() == 0) {
+            return false;
+        }
+
+        ByteString running = current.getConfigs(0).getP4DeviceConfig();
+        if (running.equals(pipelineConfig.getP4DeviceConfig())) {
+            return true;
+        }
+        try {
+            org.opendaylight.p4plugin.p4config.proto.P4DeviceConfig config =
+                    org.opendaylight.p4plugin.p4config.proto.P4DeviceConfig.parseFrom(running);
+            return pipelineCookie.equals(config.getExtras().getKvMap().get(PIPELINE_COOKIE_KEY));
+        } catch (com.google.protobuf.InvalidProtocolBufferException e) {
+            return false;
+        }
+    }
+
+    public String getPipelineCookie() {
+        return pipelineCookie;
+    }
+
+    /**
+     * Content hash of the P4Info and the device config, computed once per program.
+     */
+    private static String toPipelineCookie(P4Info p4Info, ByteString config) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        if (p4Info != null) {
+            hasher.putBytes(p4Info.toByteArray());
+        }
+        hasher.putInt(0);
+        if (config != null) {
+            hasher.putBytes(config.toByteArray());
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * The forwarding pipeline config is built and serialized once, every push reuses it.
+     */
+    private void buildPipelineConfig() {
+        pipelineCookie = toPipelineCookie(runtimeInfo, deviceConfig);
+        pipelineConfig = toPipelineConfig(runtimeInfo, deviceConfig, pipelineCookie);
+    }
+
+    private org.opendaylight.p4plugin.p4runtime.proto.ForwardingPipelineConfig toPipelineConfig(
+            P4Info runtimeInfo, ByteString deviceConfig, String cookie) {
+        org.opendaylight.p4plugin.p4config.proto.P4DeviceConfig.Builder p4DeviceConfigBuilder =
+                org.opendaylight.p4plugin.p4config.proto.P4DeviceConfig.newBuilder()
+                .setExtras(org.opendaylight.p4plugin.p4config.proto.P4DeviceConfig.Extras.newBuilder()
+                        .putKv(PIPELINE_COOKIE_KEY, cookie));
+        if (deviceConfig != null) {
+            p4DeviceConfigBuilder.setDeviceData(deviceConfig);
+        }
+        org.opendaylight.p4plugin.p4runtime.proto.ForwardingPipelineConfig.Builder configBuilder =
+                org.opendaylight.p4plugin.p4runtime.proto.ForwardingPipelineConfig.newBuilder();
+        if (runtimeInfo != null) {
+            configBuilder.setP4Info(runtimeInfo);
+        }
+        configBuilder.setP4DeviceConfig(p4DeviceConfigBuilder.build().toByteString());
+        configBuilder.setDeviceId(deviceId);
+        return configBuilder.build();
+    }
+
     public org.opendaylight.p4plugin.p4runtime.proto.GetForwardingPipelineConfigResponse getPipelineConfig() {
         org.opendaylight.p4plugin.p4runtime.proto.GetForwardingPipelineConfigRequest request =
                 org.opendaylight.p4plugin.p4runtime.proto.GetForwardingPipelineConfigRequest.newBuilder()
@@ -400,6 +630,37 @@ public class P4Device {
         return null;
     }
 
+    /**
+     * Write through the async stub, the future completes when the switch acknowledges
+     * the request, and fails with the gRPC status when the write RPC fails.
+     */
+    public ListenableFuture<org.opendaylight.p4plugin.p4runtime.proto.WriteResponse> writeAsync(
+            org.opendaylight.p4plugin.p4runtime.proto.WriteRequest request) {
+        return stub.writeAsync(request);
+    }
+
+    /**
+     * Same as writeAsync, but the failure is logged and turned into a false result,
+     * in the way write returns null.
+     */
+    private ListenableFuture<Boolean> writeResult(org.opendaylight.p4plugin.p4runtime.proto.WriteRequest request) {
+        SettableFuture<Boolean> result = SettableFuture.create();
+        Futures.addCallback(writeAsync(request),
+                new FutureCallback<org.opendaylight.p4plugin.p4runtime.proto.WriteResponse>() {
+            @Override
+            public void onSuccess(org.opendaylight.p4plugin.p4runtime.proto.WriteResponse response) {
+                result.set(true);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOG.info("Write RPC failed: reason = {}.", t.getMessage());
+                result.set(false);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
     public Iterator<org.opendaylight.p4plugin.p4runtime.proto.ReadResponse> read(
             org.opendaylight.p4plugin.p4runtime.proto.ReadRequest request) {
         Iterator<org.opendaylight.p4plugin.p4runtime.proto.ReadResponse> responses;
@@ -412,47 +673,167 @@ public class P4Device {
         return null;
     }
 
+    /**
+     * Read entities lazily, the caller must close the iterator when done.
+     */
+    public ReadEntityIterator readEntities(org.opendaylight.p4plugin.p4runtime.proto.ReadRequest request) {
+        return new ReadEntityIterator(stub, request);
+    }
+
     public void sendMasterArbitration() {
         stub.sendMasterArbitration();
     }
 
-    public void transmitPacket(byte[] payload) {
-        stub.transmitPacket(payload);
+    public boolean transmitPacket(byte[] payload) {
+        return stub.transmitPacket(Collections.emptyList(), payload);
     }
 
-    private org.opendaylight.p4plugin.p4runtime.proto.TableAction BuildTableAction(ActionType actionType) {
-        ActionParser parser = null;
-        if (actionType instanceof DIRECTACTION) {
-            parser = new DirectActionParser((DIRECTACTION) actionType);
-        } else if (actionType instanceof ACTIONPROFILEMEMBER) {
-            parser = new ActionProfileMemberParser((ACTIONPROFILEMEMBER) actionType);
-        } else if (actionType instanceof ACTIONPROFILEGROUP) {
-            parser = new ActionProfileGroupParser((ACTIONPROFILEGROUP) actionType);
-        } else {
-            LOG.info("Invalid action type.");
+    /**
+     * Packet-out with metadata, the named values are encoded by the packet_out
+     * layout compiled from the P4Info.
+     */
+    public boolean transmitPacket(List<Metadata> metadata, byte[] payload) {
+        if (metadata == null || metadata.isEmpty()) {
+            return transmitPacket(payload);
+        }
+
+        PacketMetadataLayout layout = runtimeIndex == null ? null : runtimeIndex.getPacketOutLayout();
+        if (layout == null) {
+            throw new IllegalArgumentException("No packet_out controller header in the P4 program.");
+        }
+        return stub.transmitPacket(layout.encode(metadata), payload);
+    }
+
+    public PacketCounters getPacketCounters() {
+        return stub.getPacketCounters();
+    }
+
+    public int getPacketOutQueueDepth() {
+        return stub.getPacketOutQueueDepth();
+    }
+
+    public long getPacketOutDropped() {
+        return stub.getPacketOutDropped();
+    }
+
+    private RuntimeInfoIndex.TableInfo getTableInfo(String tableName) {
+        RuntimeInfoIndex.TableInfo table = runtimeIndex.getTable(tableName);
+        if (table == null) {
+            throw new IllegalArgumentException("Unknown table " + tableName + ".");
         }
-        return parser == null ? null : parser.parse();
+        return table;
     }
 
-    private org.opendaylight.p4plugin.p4runtime.proto.FieldMatch BuildFieldMatch(
-            Field field, String tableName) {
-        MatchFieldsParser parser = null;
-        MatchType matchType = field.getMatchType();
-        String fieldName = field.getFieldName();
+    /**
+     * Match fields against the table plan, the input fields are expected in the
+     * P4Info order, so the field at the same position is tried before the name map.
+     */
+    private void encodeMatchFields(RuntimeInfoIndex.TableInfo table, List<Field> fields,
+                                   org.opendaylight.p4plugin.p4runtime.proto.TableEntry.Builder builder) {
+        if (fields == null) {
+            return;
+        }
+
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            RuntimeInfoIndex.FieldInfo info = table.getField(i, field.getFieldName());
+            if (info == null) {
+                throw new IllegalArgumentException(String.format("Unknown match field %s in table %s.",
+                        field.getFieldName(), table.getName()));
+            }
+            builder.addMatch(encodeFieldMatch(info, field.getMatchType()));
+        }
+    }
+
+    private org.opendaylight.p4plugin.p4runtime.proto.FieldMatch encodeFieldMatch(
+            RuntimeInfoIndex.FieldInfo info, MatchType matchType) {
+        org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Builder fieldMatchBuilder =
+                org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.newBuilder();
+        org.opendaylight.p4plugin.p4info.proto.MatchField.MatchType kind;
+        int width = info.getWidth();
+        fieldMatchBuilder.setFieldId(info.getId());
         if (matchType instanceof EXACT) {
-            parser = new ExactMatchParser((EXACT) matchType, tableName, fieldName);
+            kind = org.opendaylight.p4plugin.p4info.proto.MatchField.MatchType.EXACT;
+            fieldMatchBuilder.getExactBuilder()
+                    .setValue(ValueEncoder.encode(((EXACT) matchType).getExactValue(), width));
         } else if (matchType instanceof LPM) {
-            parser = new LpmMatchParser((LPM) matchType, tableName, fieldName);
+            LPM lpm = (LPM) matchType;
+            kind = org.opendaylight.p4plugin.p4info.proto.MatchField.MatchType.LPM;
+            fieldMatchBuilder.getLpmBuilder()
+                    .setValue(ValueEncoder.encode(lpm.getLpmValue(), width))
+                    .setPrefixLen(lpm.getLpmPrefixLen());
         } else if (matchType instanceof TERNARY) {
-            parser = new TernaryMatchParser((TERNARY) matchType, tableName, fieldName);
+            TERNARY ternary = (TERNARY) matchType;
+            kind = org.opendaylight.p4plugin.p4info.proto.MatchField.MatchType.TERNARY;
+            //mask is either a prefix length or a dotted mask, as wide as the value
+            fieldMatchBuilder.getTernaryBuilder()
+                    .setValue(ValueEncoder.encode(ternary.getTernaryValue(), width))
+                    .setMask(ValueEncoder.encodeMask(ternary.getTernaryMask(), width));
         } else if (matchType instanceof RANGE) {
-            parser = new RangeMatchParser((RANGE) matchType, tableName, fieldName);
+            RANGE range = (RANGE) matchType;
+            kind = org.opendaylight.p4plugin.p4info.proto.MatchField.MatchType.RANGE;
+            fieldMatchBuilder.getRangeBuilder()
+                    .setLow(ValueEncoder.encode(range.getRangeLow(), width))
+                    .setHigh(ValueEncoder.encode(range.getRangeHigh(), width));
         } else if (matchType instanceof VALID) {
-            parser = new ValidMatchParser((VALID) matchType, tableName, fieldName);
+            kind = org.opendaylight.p4plugin.p4info.proto.MatchField.MatchType.VALID;
+            fieldMatchBuilder.getValidBuilder().setValue(((VALID) matchType).isValidValue());
         } else {
-            LOG.info("Invalid match type.");
+            throw new IllegalArgumentException("Invalid match type.");
+        }
+
+        if (info.getMatchType() != org.opendaylight.p4plugin.p4info.proto.MatchField.MatchType.UNSPECIFIED
+                && info.getMatchType() != kind) {
+            throw new IllegalArgumentException(String.format("Match field %s is %s, not %s.",
+                    info.getName(), info.getMatchType(), kind));
         }
-        return parser == null ? null : parser.parse();
+        return fieldMatchBuilder.build();
+    }
+
+    /**
+     * Action and params against the action plan, the params are matched by
+     * position first in the same way as the match fields.
+     */
+    private org.opendaylight.p4plugin.p4runtime.proto.Action.Builder encodeAction(
+            String actionName, List<ActionParam> params) {
+        RuntimeInfoIndex.ActionInfo action = runtimeIndex.getAction(actionName);
+        if (action == null) {
+            throw new IllegalArgumentException("Unknown action " + actionName + ".");
+        }
+
+        org.opendaylight.p4plugin.p4runtime.proto.Action.Builder actionBuilder =
+                org.opendaylight.p4plugin.p4runtime.proto.Action.newBuilder();
+        actionBuilder.setActionId(action.getId());
+        if (params != null) {
+            for (int i = 0; i < params.size(); i++) {
+                ActionParam param = params.get(i);
+                RuntimeInfoIndex.FieldInfo info = action.getParam(i, param.getParamName());
+                if (info == null) {
+                    throw new IllegalArgumentException(String.format("Unknown param %s in action %s.",
+                            param.getParamName(), actionName));
+                }
+                actionBuilder.addParamsBuilder()
+                        .setParamId(info.getId())
+                        .setValue(ValueEncoder.encode(param.getParamValue(), info.getWidth()));
+            }
+        }
+        return actionBuilder;
+    }
+
+    private org.opendaylight.p4plugin.p4runtime.proto.TableAction encodeTableAction(ActionType actionType) {
+        org.opendaylight.p4plugin.p4runtime.proto.TableAction.Builder builder =
+                org.opendaylight.p4plugin.p4runtime.proto.TableAction.newBuilder();
+        if (actionType instanceof DIRECTACTION) {
+            DIRECTACTION action = (DIRECTACTION) actionType;
+            builder.setAction(encodeAction(action.getActionName(), action.getActionParam()));
+        } else if (actionType instanceof ACTIONPROFILEMEMBER) {
+            builder.setActionProfileMemberId(((ACTIONPROFILEMEMBER) actionType).getMemberId().intValue());
+        } else if (actionType instanceof ACTIONPROFILEGROUP) {
+            builder.setActionProfileGroupId(((ACTIONPROFILEGROUP) actionType).getGroupId().intValue());
+        } else {
+            throw new IllegalArgumentException("Invalid action type.");
+        }
+        return builder.build();
     }
 
     /**
@@ -460,19 +841,12 @@ public class P4Device {
      * When this method is called, the device must be configured.
      */
     public org.opendaylight.p4plugin.p4runtime.proto.TableEntry toTableEntryMessage(TableEntry input) {
-        String tableName = input.getTable();
-        int tableId = getTableId(tableName);
+        RuntimeInfoIndex.TableInfo table = getTableInfo(input.getTable());
         org.opendaylight.p4plugin.p4runtime.proto.TableEntry.Builder tableEntryBuilder =
                 org.opendaylight.p4plugin.p4runtime.proto.TableEntry.newBuilder();
-        List<Field> fields = input.getField();
-        fields.forEach(field -> {
-            org.opendaylight.p4plugin.p4runtime.proto.FieldMatch fieldMatch = BuildFieldMatch(field, tableName);
-            tableEntryBuilder.addMatch(fieldMatch);
-        });
-        ActionType actionType = input.getActionType();
-        org.opendaylight.p4plugin.p4runtime.proto.TableAction tableAction = BuildTableAction(actionType);
-        tableEntryBuilder.setTableId(tableId);
-        tableEntryBuilder.setAction(tableAction);
+        encodeMatchFields(table, input.getField(), tableEntryBuilder);
+        tableEntryBuilder.setTableId(table.getId());
+        tableEntryBuilder.setAction(encodeTableAction(input.getActionType()));
         return tableEntryBuilder.build();
     }
 
@@ -482,17 +856,11 @@ public class P4Device {
      * not support table entry id.
      */
     public org.opendaylight.p4plugin.p4runtime.proto.TableEntry toTableEntryMessage(EntryKey input) {
-        String tableName = input.getTable();
-        int tableId = getTableId(tableName);
+        RuntimeInfoIndex.TableInfo table = getTableInfo(input.getTable());
         org.opendaylight.p4plugin.p4runtime.proto.TableEntry.Builder tableEntryBuilder =
                 org.opendaylight.p4plugin.p4runtime.proto.TableEntry.newBuilder();
-        List<Field> fields = input.getField();
-        fields.forEach(field -> {
-            org.opendaylight.p4plugin.p4runtime.proto.FieldMatch fieldMatch =
-                    BuildFieldMatch(field, tableName);
-            tableEntryBuilder.addMatch(fieldMatch);
-        });
-        tableEntryBuilder.setTableId(tableId);
+        encodeMatchFields(table, input.getField(), tableEntryBuilder);
+        tableEntryBuilder.setTableId(table.getId());
         return tableEntryBuilder.build();
     }
 
@@ -502,31 +870,12 @@ public class P4Device {
      */
     public org.opendaylight.p4plugin.p4runtime.proto.ActionProfileMember toActionProfileMemberMessage(
             ActionProfileMember member) {
-        String actionName = member.getActionName();
         Long memberId = member.getMemberId();
         String actionProfile = member.getActionProfile();
 
         org.opendaylight.p4plugin.p4runtime.proto.ActionProfileMember.Builder memberBuilder =
                 org.opendaylight.p4plugin.p4runtime.proto.ActionProfileMember.newBuilder();
-        org.opendaylight.p4plugin.p4runtime.proto.Action.Builder actionBuilder =
-                org.opendaylight.p4plugin.p4runtime.proto.Action.newBuilder();
-
-        actionBuilder.setActionId(getActionId(actionName));
-        member.getActionParam().forEach(actionParam -> {
-            org.opendaylight.p4plugin.p4runtime.proto.Action.Param.Builder paramBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.Action.Param.newBuilder();
-            String paramName = actionParam.getParamName();
-            String paramValue = actionParam.getParamValue();
-            int paramId = getParamId(actionName, paramName);
-            int paramWidth = getParamWidth(actionName, paramName);
-            paramBuilder.setParamId(paramId);
-            byte[] valueByteArr = Utils.strToByteArray(paramValue, paramWidth);
-            ByteString valueByteStr = ByteString.copyFrom(valueByteArr);
-            paramBuilder.setValue(valueByteStr);
-            actionBuilder.addParams(paramBuilder);
-        });
-
-        memberBuilder.setAction(actionBuilder);
+        memberBuilder.setAction(encodeAction(member.getActionName(), member.getActionParam()));
         memberBuilder.setActionProfileId(getActionProfileId(actionProfile));
         memberBuilder.setMemberId(memberId.intValue());
         return memberBuilder.build();
@@ -713,6 +1062,134 @@ public class P4Device {
         return new String(buffer);
     }
 
+    /**
+     * Table entry object to the structured read result, built from the protobuf
+     * message directly, the values are rendered as ValueEncoder accepts them.
+     */
+    public Entry toTableEntryData(org.opendaylight.p4plugin.p4runtime.proto.TableEntry entry) {
+        int tableId = entry.getTableId();
+        List<Field> fields = new ArrayList<>(entry.getMatchCount());
+        entry.getMatchList().forEach(field -> {
+            FieldBuilder fieldBuilder = new FieldBuilder();
+            fieldBuilder.setFieldName(getMatchFieldName(tableId, field.getFieldId()));
+            switch (field.getFieldMatchTypeCase()) {
+                case EXACT: {
+                    fieldBuilder.setMatchType(new EXACTBuilder()
+                            .setExactValue(Utils.byteStringToValueStr(field.getExact().getValue())).build());
+                    break;
+                }
+
+                case LPM: {
+                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.LPM lpm = field.getLpm();
+                    fieldBuilder.setMatchType(new LPMBuilder()
+                            .setLpmValue(Utils.byteStringToValueStr(lpm.getValue()))
+                            .setLpmPrefixLen((short) lpm.getPrefixLen()).build());
+                    break;
+                }
+
+                case TERNARY: {
+                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Ternary ternary = field.getTernary();
+                    TERNARYBuilder ternaryBuilder = new TERNARYBuilder();
+                    ternaryBuilder.setTernaryValue(Utils.byteStringToValueStr(ternary.getValue()));
+                    //the mask leaf only takes a prefix length or a dotted ipv4 mask
+                    if (ternary.getMask().size() == 4) {
+                        ternaryBuilder.setTernaryMask(Utils.byteStringToValueStr(ternary.getMask()));
+                    }
+                    fieldBuilder.setMatchType(ternaryBuilder.build());
+                    break;
+                }
+
+                case RANGE: {
+                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Range range = field.getRange();
+                    fieldBuilder.setMatchType(new RANGEBuilder()
+                            .setRangeLow(Utils.byteStringToLong(range.getLow()))
+                            .setRangeHigh(Utils.byteStringToLong(range.getHigh())).build());
+                    break;
+                }
+
+                case VALID: {
+                    fieldBuilder.setMatchType(new VALIDBuilder().setValidValue(field.getValid().getValue()).build());
+                    break;
+                }
+
+                default:break;
+            }
+            fields.add(fieldBuilder.build());
+        });
+
+        EntryBuilder entryBuilder = new EntryBuilder();
+        entryBuilder.setTable(getTableName(tableId));
+        entryBuilder.setField(fields);
+
+        org.opendaylight.p4plugin.p4runtime.proto.TableAction tableAction = entry.getAction();
+        switch (tableAction.getTypeCase()) {
+            case ACTION: {
+                org.opendaylight.p4plugin.p4runtime.proto.Action action = tableAction.getAction();
+                entryBuilder.setActionType(new DIRECTACTIONBuilder()
+                        .setActionName(getActionName(action.getActionId()))
+                        .setActionParam(toActionParamList(action)).build());
+                break;
+            }
+
+            case ACTION_PROFILE_MEMBER_ID: {
+                entryBuilder.setActionType(new ACTIONPROFILEMEMBERBuilder()
+                        .setMemberId((long) tableAction.getActionProfileMemberId()).build());
+                break;
+            }
+
+            case ACTION_PROFILE_GROUP_ID: {
+                entryBuilder.setActionType(new ACTIONPROFILEGROUPBuilder()
+                        .setGroupId((long) tableAction.getActionProfileGroupId()).build());
+                break;
+            }
+
+            default:break;
+        }
+        return entryBuilder.build();
+    }
+
+    /**
+     * Action profile member to the structured read result.
+     */
+    public Member toActionProfileMemberData(org.opendaylight.p4plugin.p4runtime.proto.ActionProfileMember member) {
+        org.opendaylight.p4plugin.p4runtime.proto.Action action = member.getAction();
+        return new MemberBuilder()
+                .setActionProfile(getActionProfileName(member.getActionProfileId()))
+                .setMemberId((long) member.getMemberId())
+                .setActionName(getActionName(action.getActionId()))
+                .setActionParam(toActionParamList(action))
+                .build();
+    }
+
+    /**
+     * Action profile group to the structured read result.
+     */
+    public Group toActionProfileGroupData(org.opendaylight.p4plugin.p4runtime.proto.ActionProfileGroup group) {
+        List<GroupMember> members = new ArrayList<>(group.getMembersCount());
+        group.getMembersList().forEach(member -> members.add(new GroupMemberBuilder()
+                .setMemberId((long) member.getMemberId())
+                .setWeight(member.getWeight())
+                .setWatch(member.getWatch())
+                .build()));
+        return new GroupBuilder()
+                .setActionProfile(getActionProfileName(group.getActionProfileId()))
+                .setGroupId((long) group.getGroupId())
+                .setGroupType(ActionProfileGroup.GroupType.forValue(group.getTypeValue()))
+                .setGroupMember(members)
+                .setMaxSize(group.getMaxSize())
+                .build();
+    }
+
+    private List<ActionParam> toActionParamList(org.opendaylight.p4plugin.p4runtime.proto.Action action) {
+        int actionId = action.getActionId();
+        List<ActionParam> params = new ArrayList<>(action.getParamsCount());
+        action.getParamsList().forEach(param -> params.add(new ActionParamBuilder()
+                .setParamName(getParamName(actionId, param.getParamId()))
+                .setParamValue(Utils.byteStringToValueStr(param.getValue()))
+                .build()));
+        return params;
+    }
+
     public TableManager newTableManager() {
         return new TableManager();
     }
@@ -763,241 +1240,126 @@ public class P4Device {
             P4Device device = new P4Device();
             device.deviceConfig = deviceConfig_;
             device.runtimeInfo = runtimeInfo_;
+            device.runtimeIndex = runtimeInfo_ == null ? null : new RuntimeInfoIndex(runtimeInfo_);
             device.deviceId = deviceId_;
             device.nodeId = nodeId_;
             device.ip = ip_;
             device.port = port_;
+            device.buildPipelineConfig();
             device.stub = new P4RuntimeStub(nodeId_, deviceId_, ip_, port_);
-            return device;
-        }
-    }
-
-    public enum State {
-        Unknown,
-        Connected,
-        Configured,
-    }
-
-    private interface ActionParser {
-        org.opendaylight.p4plugin.p4runtime.proto.TableAction parse();
-    }
-
-    private class DirectActionParser implements ActionParser {
-        private DIRECTACTION action;
-        private DirectActionParser(DIRECTACTION action) {
-            this.action = action;
-        }
-
-        @Override
-        public org.opendaylight.p4plugin.p4runtime.proto.TableAction parse() {
-            org.opendaylight.p4plugin.p4runtime.proto.TableAction.Builder tableActionBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.TableAction.newBuilder();
-            org.opendaylight.p4plugin.p4runtime.proto.Action.Builder actionBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.Action.newBuilder();
-            List<ActionParam> params = action.getActionParam();
-            String actionName = action.getActionName();
-            actionBuilder.setActionId(getActionId(actionName));
-            for (ActionParam p : params) {
-                org.opendaylight.p4plugin.p4runtime.proto.Action.Param.Builder paramBuilder =
-                        org.opendaylight.p4plugin.p4runtime.proto.Action.Param.newBuilder();
-                String paramName = p.getParamName();
-                String paramValue = p.getParamValue();
-                int paramId = getParamId(actionName, paramName);
-                int paramWidth = getParamWidth(actionName, paramName);
-                paramBuilder.setParamId(paramId);
-                byte[] valueByteArr = Utils.strToByteArray(paramValue, paramWidth);
-                ByteString valueByteStr = ByteString.copyFrom(valueByteArr);
-                paramBuilder.setValue(valueByteStr);
-                actionBuilder.addParams(paramBuilder);
+            device.stub.setStreamLostHandler(device::onStreamLost);
+            if (device.runtimeIndex != null) {
+                device.stub.setPacketInLayout(device.runtimeIndex.getPacketInLayout());
             }
-            return tableActionBuilder.setAction(actionBuilder).build();
-        }
-    }
-
-    private class ActionProfileMemberParser implements ActionParser {
-        private ACTIONPROFILEMEMBER action;
-        private ActionProfileMemberParser(ACTIONPROFILEMEMBER action) {
-            this.action = action;
-        }
-
-        @Override
-        public org.opendaylight.p4plugin.p4runtime.proto.TableAction parse() {
-            org.opendaylight.p4plugin.p4runtime.proto.TableAction.Builder builder =
-                    org.opendaylight.p4plugin.p4runtime.proto.TableAction.newBuilder();
-            builder.setActionProfileMemberId(action.getMemberId().intValue());
-            return builder.build();
+            return device;
         }
     }
 
-    private class ActionProfileGroupParser implements ActionParser {
-        private ACTIONPROFILEGROUP action;
-        private ActionProfileGroupParser(ACTIONPROFILEGROUP action) {
-            this.action = action;
-        }
-
-        @Override
-        public org.opendaylight.p4plugin.p4runtime.proto.TableAction parse() {
-            org.opendaylight.p4plugin.p4runtime.proto.TableAction.Builder builder =
-                    org.opendaylight.p4plugin.p4runtime.proto.TableAction.newBuilder();
-            builder.setActionProfileGroupId(action.getGroupId().intValue());
-            return builder.build();
+    /**
+     * A program saved on the switch by VERIFY_AND_SAVE and not yet committed.
+     */
+    private static final class StagedPipeline {
+        private final P4Info runtimeInfo;
+        private final ByteString deviceConfig;
+        private final RuntimeInfoIndex runtimeIndex;
+        private final String cookie;
+        private final org.opendaylight.p4plugin.p4runtime.proto.ForwardingPipelineConfig config;
+
+        private StagedPipeline(P4Info runtimeInfo, ByteString deviceConfig, RuntimeInfoIndex runtimeIndex,
+                               String cookie,
+                               org.opendaylight.p4plugin.p4runtime.proto.ForwardingPipelineConfig config) {
+            this.runtimeInfo = runtimeInfo;
+            this.deviceConfig = deviceConfig;
+            this.runtimeIndex = runtimeIndex;
+            this.cookie = cookie;
+            this.config = config;
         }
     }
 
-    private abstract class MatchFieldsParser {
-        protected org.opendaylight.yang.gen.v1.urn.opendaylight
-                .p4plugin.core.table.rev170808.match.fields.field.MatchType matchType;
-        protected Integer matchFieldId;
-        protected Integer matchFieldWidth;
-
-        private MatchFieldsParser(
-                org.opendaylight.yang.gen.v1.urn.opendaylight
-                        .p4plugin.core.table.rev170808.match.fields.field.MatchType matchType,
-                String tableName, String fieldName) {
-            this.matchType = matchType;
-            this.matchFieldId = getMatchFieldId(tableName, fieldName);
-            this.matchFieldWidth = getMatchFieldWidth(tableName, fieldName);
-        }
-
-        public abstract org.opendaylight.p4plugin.p4runtime.proto.FieldMatch parse();
+    public enum PipelinePush {
+        PUSHED,
+        SKIPPED,
+        FAILED
     }
 
-    private class ExactMatchParser extends MatchFieldsParser {
-        private ExactMatchParser(EXACT exact, String tableName, String fieldName) {
-            super(exact, tableName, fieldName);
-        }
-
-        public org.opendaylight.p4plugin.p4runtime.proto.FieldMatch parse() {
-            org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Builder fieldMatchBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.newBuilder();
-            org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Exact.Builder exactBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Exact.newBuilder();
-            EXACT exact = (EXACT) matchType;
-            String value = exact.getExactValue();
-            exactBuilder.setValue(ByteString.copyFrom(Utils.strToByteArray(value, matchFieldWidth)));
-            fieldMatchBuilder.setExact(exactBuilder);
-            fieldMatchBuilder.setFieldId(matchFieldId);
-            return fieldMatchBuilder.build();
-        }
+    public enum State {
+        Unknown,
+        Connecting,
+        Connected,
+        Configured,
     }
 
-    private class LpmMatchParser extends MatchFieldsParser {
-        private LpmMatchParser(LPM lpm, String tableName, String fieldName) {
-            super(lpm, tableName, fieldName);
-        }
+    public class TableManager {
+        public TableManager() {}
 
-        public org.opendaylight.p4plugin.p4runtime.proto.FieldMatch parse() {
-            org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Builder fieldMatchBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.newBuilder();
-            org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.LPM.Builder lpmBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.LPM.newBuilder();
-            LPM lpm = (LPM) matchType;
-            String value = lpm.getLpmValue();
-            int prefixLen = lpm.getLpmPrefixLen();
-            // Value must match ipv4 address
-            if (value.matches("([1-9]|[1-9]\\d|1\\d{2}|2[0-4]|25[0-5])\\."
-                            + "((\\d|[1-9]\\d|1\\d{2}|2[0-4]\\d|25[0-5])\\.){2}"
-                            + "(\\d|[1-9]\\d|1\\d{2}|2[0-4]\\d|25[0-5])")) {
-                lpmBuilder.setValue(ByteString.copyFrom(Utils.strToByteArray(value, matchFieldWidth)));
-                lpmBuilder.setPrefixLen(prefixLen);
+        /**
+         * Write a single update, it goes through the write coalescer if the device
+         * has one, otherwise it is sent in its own write request.
+         */
+        private boolean writeUpdate(org.opendaylight.p4plugin.p4runtime.proto.Update update) {
+            WriteCoalescer coalescer = writeCoalescer;
+            boolean result;
+            if (coalescer != null) {
+                ListenableFuture<Boolean> future = coalescer.submit(update);
+                try {
+                    result = future.get(WriteCoalescer.getWriteTimeout(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (ExecutionException e) {
+                    LOG.info("Coalesced write failed, reason = {}.", e.getMessage());
+                    return false;
+                } catch (TimeoutException e) {
+                    LOG.info("Coalesced write timed out, node = {}.", nodeId);
+                    //the update may still be written, keep the shadow store in step if it is
+                    Futures.addCallback(future, new FutureCallback<Boolean>() {
+                        @Override
+                        public void onSuccess(Boolean success) {
+                            if (success) {
+                                shadowStore.apply(update);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {}
+                    }, MoreExecutors.directExecutor());
+                    return false;
+                }
+            } else {
+                result = write(toWriteRequest(update)) != null;
             }
-            fieldMatchBuilder.setLpm(lpmBuilder);
-            fieldMatchBuilder.setFieldId(matchFieldId);
-            return fieldMatchBuilder.build();
-        }
-    }
-
-    private class TernaryMatchParser extends MatchFieldsParser {
-        private TernaryMatchParser(TERNARY ternary, String tableName, String fieldName) {
-            super(ternary, tableName, fieldName);
-        }
-
-        public org.opendaylight.p4plugin.p4runtime.proto.FieldMatch parse() {
-            org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Builder fieldMatchBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.newBuilder();
-            org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Ternary.Builder ternaryBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Ternary.newBuilder();
-            TERNARY ternary = (TERNARY) matchType;
-            String mask = ternary.getTernaryMask();
-            String value = ternary.getTernaryValue();
 
-            if (value.matches("([1-9]|[1-9]\\d|1\\d{2}|2[0-4]|25[0-5])\\."
-                            + "((\\d|[1-9]\\d|1\\d{2}|2[0-4]\\d|25[0-5])\\.){2}"
-                            + "(\\d|[1-9]\\d|1\\d{2}|2[0-4]\\d|25[0-5])")) {
-                ternaryBuilder.setValue(ByteString.copyFrom(Utils.strToByteArray(value, matchFieldWidth)));
+            if (result) {
+                shadowStore.apply(update);
             }
+            return result;
+        }
 
-            if (mask.matches("([1-9]|[1-9]\\d|1\\d{2}|2[0-4]|25[0-5])\\."
-                           + "((\\d|[1-9]\\d|1\\d{2}|2[0-4]\\d|25[0-5])\\.){2}"
-                           + "(\\d|[1-9]\\d|1\\d{2}|2[0-4]\\d|25[0-5])")) {
-                ternaryBuilder.setMask(ByteString.copyFrom(Utils.strToByteArray(mask, 4)));
-            } else if (mask.matches("([1-9]|[1-2][0-9]|3[0-2])")) {
-                StringBuffer buffer = new StringBuffer(32);
-                for (int i = 0; i < 32; i++) {
-                    if (i < Integer.parseInt(mask)) {
-                        buffer.append('1');
-                    } else {
-                        buffer.append('0');
-                    }
-                }
-
-                String[] resultStr = new String[4];
-                byte[] resultByte = new byte[4];
-                for (int i = 0; i < resultStr.length; i++) {
-                    resultStr[i] = buffer.substring(i * 8, i * 8 + 8);
-                    for (int m = resultStr[i].length() - 1, n = 0; m >= 0; m--, n++) {
-                        resultByte[i] += Byte.parseByte(resultStr[i].charAt(i) + "") * Math.pow(2, n);
+        private ListenableFuture<Boolean> writeUpdateAsync(org.opendaylight.p4plugin.p4runtime.proto.Update update) {
+            WriteCoalescer coalescer = writeCoalescer;
+            ListenableFuture<Boolean> result =
+                    coalescer != null ? coalescer.submit(update) : writeResult(toWriteRequest(update));
+            Futures.addCallback(result, new FutureCallback<Boolean>() {
+                @Override
+                public void onSuccess(Boolean success) {
+                    if (success) {
+                        shadowStore.apply(update);
                     }
                 }
-                ternaryBuilder.setMask(ByteString.copyFrom(resultByte));
-            }
-            fieldMatchBuilder.setTernary(ternaryBuilder);
-            fieldMatchBuilder.setFieldId(matchFieldId);
-            return fieldMatchBuilder.build();
-        }
-    }
-
-    private class RangeMatchParser extends MatchFieldsParser {
-        private RangeMatchParser(RANGE range, String tableName, String fieldName) {
-            super(range, tableName, fieldName);
-        }
-
-        public org.opendaylight.p4plugin.p4runtime.proto.FieldMatch parse() {
-            org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Builder fieldMatchBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.newBuilder();
-            org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Range.Builder rangeBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Range.newBuilder();
-            RANGE range = (RANGE) matchType;
-            Long high = range.getRangeHigh();
-            Long low = range.getRangeLow();
-            rangeBuilder.setHigh(ByteString.copyFrom(Utils.intToByteArray(high.intValue())));
-            rangeBuilder.setLow(ByteString.copyFrom(Utils.intToByteArray(low.intValue())));
-            fieldMatchBuilder.setFieldId(matchFieldId);
-            fieldMatchBuilder.setRange(rangeBuilder);
-            return fieldMatchBuilder.build();
-        }
-    }
 
-    private class ValidMatchParser extends MatchFieldsParser {
-        private ValidMatchParser(VALID valid, String tableName, String fieldName) {
-            super(valid, tableName, fieldName);
+                @Override
+                public void onFailure(Throwable t) {}
+            }, MoreExecutors.directExecutor());
+            return result;
         }
 
-        public org.opendaylight.p4plugin.p4runtime.proto.FieldMatch parse() {
-            org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Builder fieldMatchBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.newBuilder();
-            org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Valid.Builder validBuilder =
-                    org.opendaylight.p4plugin.p4runtime.proto.FieldMatch.Valid.newBuilder();
-            VALID valid = (VALID) matchType;
-            validBuilder.setValue(valid.isValidValue());
-            fieldMatchBuilder.setFieldId(matchFieldId);
-            fieldMatchBuilder.setValid(validBuilder);
-            return fieldMatchBuilder.build();
+        private org.opendaylight.p4plugin.p4runtime.proto.WriteRequest toWriteRequest(
+                org.opendaylight.p4plugin.p4runtime.proto.Update update) {
+            return org.opendaylight.p4plugin.p4runtime.proto.WriteRequest.newBuilder()
+                    .setDeviceId(getDeviceId())
+                    .addUpdates(update)
+                    .build();
         }
-    }
-
-    public class TableManager {
-        public TableManager() {}
 
         public boolean addTableEntry(TableEntry entry) {
             return new AddTableEntryOperator(entry).operate();
@@ -1011,34 +1373,53 @@ public class P4Device {
             return new DeleteTableEntryOperator(entry).operate();
         }
 
+        public ListenableFuture<Boolean> addTableEntryAsync(TableEntry entry) {
+            return new AddTableEntryOperator(entry).operateAsync();
+        }
+
+        public ListenableFuture<Boolean> modifyTableEntryAsync(TableEntry entry) {
+            return new ModifyTableEntryOperator(entry).operateAsync();
+        }
+
+        public ListenableFuture<Boolean> deleteTableEntryAsync(EntryKey entry) {
+            return new DeleteTableEntryOperator(entry).operateAsync();
+        }
+
         public List<String> readTableEntry(String tableName) {
+            return readTableEntry(tableName, false, 0, 0, P4Device.this::toTableEntryString).getContent();
+        }
+
+        /**
+         * Read one page of table entries, the entries are pulled lazily from the read
+         * stream or from the shadow table store.
+         * @param fromCache read from the shadow table store instead of the device, the
+         *                  store is seeded first after a skipped push, the device is
+         *                  read if that fails.
+         * @param offset number of entries to skip.
+         * @param limit max number of entries in the page, 0 means no limit.
+         * @param converter toTableEntryString or toTableEntryData.
+         */
+        public <T> ReadPage<T> readTableEntry(String tableName, boolean fromCache, long offset, long limit,
+                java.util.function.Function<org.opendaylight.p4plugin.p4runtime.proto.TableEntry, T> converter) {
+            int tableId = tableName == null ? 0 : getTableId(tableName);
+            if (fromCache && ensureShadowSeeded()) {
+                return ReadPage.of(shadowStore.getTableEntries(tableId).iterator(), offset, limit, converter);
+            }
+
             org.opendaylight.p4plugin.p4runtime.proto.ReadRequest.Builder request =
                     org.opendaylight.p4plugin.p4runtime.proto.ReadRequest.newBuilder();
             org.opendaylight.p4plugin.p4runtime.proto.Entity.Builder entityBuilder =
                     org.opendaylight.p4plugin.p4runtime.proto.Entity.newBuilder();
             org.opendaylight.p4plugin.p4runtime.proto.TableEntry.Builder entryBuilder =
                     org.opendaylight.p4plugin.p4runtime.proto.TableEntry.newBuilder();
-            entryBuilder.setTableId(tableName == null ? 0 : getTableId(tableName));
+            entryBuilder.setTableId(tableId);
             entityBuilder.setTableEntry(entryBuilder);
             request.addEntities(entityBuilder);
             request.setDeviceId(getDeviceId());
 
-            Iterator<org.opendaylight.p4plugin.p4runtime.proto.ReadResponse> responses =
-                    read(request.build());
-            List<String> result = new ArrayList<>();
-
-            while (responses.hasNext()) {
-                org.opendaylight.p4plugin.p4runtime.proto.ReadResponse response = responses.next();
-                List<org.opendaylight.p4plugin.p4runtime.proto.Entity> entityList =
-                        response.getEntitiesList();
-                boolean isCompleted = response.getComplete();
-                entityList.forEach(entity-> {
-                    String str = toTableEntryString(entity.getTableEntry());
-                    result.add(str);
-                });
-                if (isCompleted) break;
+            try (ReadEntityIterator entities = readEntities(request.build())) {
+                return ReadPage.of(entities, offset, limit, entity -> converter.apply(entity.getTableEntry()));
             }
-            return result;
         }
 
         private abstract class TableEntryOperator {
@@ -1053,9 +1434,7 @@ public class P4Device {
                 this.type = type;
             }
 
-            protected boolean operate() {
-                org.opendaylight.p4plugin.p4runtime.proto.WriteRequest.Builder requestBuilder =
-                        org.opendaylight.p4plugin.p4runtime.proto.WriteRequest.newBuilder();
+            private org.opendaylight.p4plugin.p4runtime.proto.Update buildUpdate() {
                 org.opendaylight.p4plugin.p4runtime.proto.Update.Builder updateBuilder =
                         org.opendaylight.p4plugin.p4runtime.proto.Update.newBuilder();
                 org.opendaylight.p4plugin.p4runtime.proto.Entity.Builder entityBuilder =
@@ -1063,9 +1442,15 @@ public class P4Device {
                 entityBuilder.setTableEntry(entry);
                 updateBuilder.setType(type);
                 updateBuilder.setEntity(entityBuilder);
-                requestBuilder.setDeviceId(getDeviceId());
-                requestBuilder.addUpdates(updateBuilder);
-                return write(requestBuilder.build()) != null;
+                return updateBuilder.build();
+            }
+
+            protected boolean operate() {
+                return writeUpdate(buildUpdate());
+            }
+
+            protected ListenableFuture<Boolean> operateAsync() {
+                return writeUpdateAsync(buildUpdate());
             }
         }
 
@@ -1102,7 +1487,35 @@ public class P4Device {
             return new DeleteActionProfileMemberOperator(key).operate();
         }
 
+        public ListenableFuture<Boolean> addActionProfileMemberAsync(ActionProfileMember actionProfileMember) {
+            return new AddActionProfileMemberOperator(actionProfileMember).operateAsync();
+        }
+
+        public ListenableFuture<Boolean> modifyActionProfileMemberAsync(ActionProfileMember actionProfileMember) {
+            return new ModifyActionProfileMemberOperator(actionProfileMember).operateAsync();
+        }
+
+        public ListenableFuture<Boolean> deleteActionProfileMemberAsync(MemberKey key) {
+            return new DeleteActionProfileMemberOperator(key).operateAsync();
+        }
+
         public List<String> readActionProfileMember(String actionProfileName) {
+            return readActionProfileMember(actionProfileName, false, 0, 0,
+                    P4Device.this::toActionProfileMemberString).getContent();
+        }
+
+        /**
+         * Read one page of action profile members, see readTableEntry.
+         */
+        public <T> ReadPage<T> readActionProfileMember(String actionProfileName, boolean fromCache,
+                long offset, long limit,
+                java.util.function.Function<org.opendaylight.p4plugin.p4runtime.proto.ActionProfileMember, T> converter) {
+            int actionProfileId = actionProfileName == null ? 0 : getActionProfileId(actionProfileName);
+            if (fromCache && ensureShadowSeeded()) {
+                return ReadPage.of(shadowStore.getActionProfileMembers(actionProfileId).iterator(),
+                        offset, limit, converter);
+            }
+
             org.opendaylight.p4plugin.p4runtime.proto.ReadRequest.Builder requestBuilder =
                     org.opendaylight.p4plugin.p4runtime.proto.ReadRequest.newBuilder();
             org.opendaylight.p4plugin.p4runtime.proto.Entity.Builder entityBuilder =
@@ -1110,25 +1523,15 @@ public class P4Device {
             org.opendaylight.p4plugin.p4runtime.proto.ActionProfileMember.Builder memberBuilder =
                     org.opendaylight.p4plugin.p4runtime.proto.ActionProfileMember.newBuilder();
 
-            memberBuilder.setActionProfileId(actionProfileName == null ? 0 : getActionProfileId(actionProfileName));
+            memberBuilder.setActionProfileId(actionProfileId);
             entityBuilder.setActionProfileMember(memberBuilder);
             requestBuilder.setDeviceId(getDeviceId());
             requestBuilder.addEntities(entityBuilder);
 
-            Iterator<org.opendaylight.p4plugin.p4runtime.proto.ReadResponse> responses = read(requestBuilder.build());
-            List<String> result = new ArrayList<>();
-
-            while (responses.hasNext()) {
-                org.opendaylight.p4plugin.p4runtime.proto.ReadResponse response = responses.next();
-                List<org.opendaylight.p4plugin.p4runtime.proto.Entity> entityList = response.getEntitiesList();
-                boolean isCompleted = response.getComplete();
-                entityList.forEach(entity-> {
-                    String str = toActionProfileMemberString(entity.getActionProfileMember());
-                    result.add(str);
-                });
-                if (isCompleted) break;
+            try (ReadEntityIterator entities = readEntities(requestBuilder.build())) {
+                return ReadPage.of(entities, offset, limit,
+                        entity -> converter.apply(entity.getActionProfileMember()));
             }
-            return result;
         }
 
         private abstract class ActionProfileMemberOperator {
@@ -1143,9 +1546,7 @@ public class P4Device {
                 this.type = type;
             }
 
-            protected boolean operate() {
-                org.opendaylight.p4plugin.p4runtime.proto.WriteRequest.Builder requestBuilder =
-                        org.opendaylight.p4plugin.p4runtime.proto.WriteRequest.newBuilder();
+            private org.opendaylight.p4plugin.p4runtime.proto.Update buildUpdate() {
                 org.opendaylight.p4plugin.p4runtime.proto.Update.Builder updateBuilder =
                         org.opendaylight.p4plugin.p4runtime.proto.Update.newBuilder();
                 org.opendaylight.p4plugin.p4runtime.proto.Entity.Builder entityBuilder =
@@ -1153,9 +1554,15 @@ public class P4Device {
                 entityBuilder.setActionProfileMember(member);
                 updateBuilder.setType(type);
                 updateBuilder.setEntity(entityBuilder);
-                requestBuilder.addUpdates(updateBuilder);
-                requestBuilder.setDeviceId(getDeviceId());
-                return write(requestBuilder.build()) != null;
+                return updateBuilder.build();
+            }
+
+            protected boolean operate() {
+                return writeUpdate(buildUpdate());
+            }
+
+            protected ListenableFuture<Boolean> operateAsync() {
+                return writeUpdateAsync(buildUpdate());
             }
         }
 
@@ -1192,32 +1599,50 @@ public class P4Device {
             return new DeleteActionProfileGroupOperator(key).operate();
         }
 
+        public ListenableFuture<Boolean> addActionProfileGroupAsync(ActionProfileGroup actionProfileGroup) {
+            return new AddActionProfileGroupOperator(actionProfileGroup).operateAsync();
+        }
+
+        public ListenableFuture<Boolean> modifyActionProfileGroupAsync(ActionProfileGroup actionProfileGroup) {
+            return new ModifyActionProfileGroupOperator(actionProfileGroup).operateAsync();
+        }
+
+        public ListenableFuture<Boolean> deleteActionProfileGroupAsync(GroupKey key) {
+            return new DeleteActionProfileGroupOperator(key).operateAsync();
+        }
+
         public List<String> readActionProfileGroup(String actionProfileName) {
+            return readActionProfileGroup(actionProfileName, false, 0, 0,
+                    P4Device.this::toActionProfileGroupString).getContent();
+        }
+
+        /**
+         * Read one page of action profile groups, see readTableEntry.
+         */
+        public <T> ReadPage<T> readActionProfileGroup(String actionProfileName, boolean fromCache,
+                long offset, long limit,
+                java.util.function.Function<org.opendaylight.p4plugin.p4runtime.proto.ActionProfileGroup, T> converter) {
+            int actionProfileId = actionProfileName == null ? 0 : getActionProfileId(actionProfileName);
+            if (fromCache && ensureShadowSeeded()) {
+                return ReadPage.of(shadowStore.getActionProfileGroups(actionProfileId).iterator(),
+                        offset, limit, converter);
+            }
+
             org.opendaylight.p4plugin.p4runtime.proto.ReadRequest.Builder requestBuilder =
                     org.opendaylight.p4plugin.p4runtime.proto.ReadRequest.newBuilder();
             org.opendaylight.p4plugin.p4runtime.proto.Entity.Builder entityBuilder =
                     org.opendaylight.p4plugin.p4runtime.proto.Entity.newBuilder();
             org.opendaylight.p4plugin.p4runtime.proto.ActionProfileGroup.Builder groupBuilder =
                     org.opendaylight.p4plugin.p4runtime.proto.ActionProfileGroup.newBuilder();
-            groupBuilder.setActionProfileId(actionProfileName == null ? 0 : getActionProfileId(actionProfileName));
+            groupBuilder.setActionProfileId(actionProfileId);
             entityBuilder.setActionProfileGroup(groupBuilder);
             requestBuilder.setDeviceId(getDeviceId());
             requestBuilder.addEntities(entityBuilder);
 
-            Iterator<org.opendaylight.p4plugin.p4runtime.proto.ReadResponse> responses = read(requestBuilder.build());
-            List<String> result = new ArrayList<>();
-
-            while (responses.hasNext()) {
-                org.opendaylight.p4plugin.p4runtime.proto.ReadResponse response = responses.next();
-                List<org.opendaylight.p4plugin.p4runtime.proto.Entity> entityList = response.getEntitiesList();
-                boolean isCompleted = response.getComplete();
-                entityList.forEach(entity-> {
-                    String str = toActionProfileGroupString(entity.getActionProfileGroup());
-                    result.add(str);
-                });
-                if (isCompleted) break;
+            try (ReadEntityIterator entities = readEntities(requestBuilder.build())) {
+                return ReadPage.of(entities, offset, limit,
+                        entity -> converter.apply(entity.getActionProfileGroup()));
             }
-            return result;
         }
 
         private abstract class ActionProfileGroupOperator {
@@ -1232,19 +1657,23 @@ public class P4Device {
                 this.type = type;
             }
 
-            protected boolean operate() {
-                org.opendaylight.p4plugin.p4runtime.proto.WriteRequest.Builder requestBuilder =
-                        org.opendaylight.p4plugin.p4runtime.proto.WriteRequest.newBuilder();
+            private org.opendaylight.p4plugin.p4runtime.proto.Update buildUpdate() {
                 org.opendaylight.p4plugin.p4runtime.proto.Update.Builder updateBuilder =
                         org.opendaylight.p4plugin.p4runtime.proto.Update.newBuilder();
                 org.opendaylight.p4plugin.p4runtime.proto.Entity.Builder entityBuilder =
                         org.opendaylight.p4plugin.p4runtime.proto.Entity.newBuilder();
                 entityBuilder.setActionProfileGroup(group);
-                updateBuilder.setEntity(entityBuilder);
                 updateBuilder.setType(type);
-                requestBuilder.addUpdates(updateBuilder);
-                requestBuilder.setDeviceId(getDeviceId());
-                return write(requestBuilder.build()) != null;
+                updateBuilder.setEntity(entityBuilder);
+                return updateBuilder.build();
+            }
+
+            protected boolean operate() {
+                return writeUpdate(buildUpdate());
+            }
+
+            protected ListenableFuture<Boolean> operateAsync() {
+                return writeUpdateAsync(buildUpdate());
             }
         }
 
@@ -1268,5 +1697,120 @@ public class P4Device {
                 setType(org.opendaylight.p4plugin.p4runtime.proto.Update.Type.DELETE);
             }
         }
+
+        /**
+         * Write a list of mixed insert/modify/delete updates, the updates are packed into
+         * write requests of at most chunkSize updates, one round trip per chunk. The write
+         * response carries no per update status, so every update gets the result of the
+         * chunk it was sent in, an update which cannot be serialized fails on its own.
+         * @param updates updates in the order they will be sent.
+         * @param chunkSize max number of updates in one write request.
+         * @return results of the updates, in the same order as the input.
+         */
+        public List<Boolean> writeBatch(List<Update> updates, int chunkSize) {
+            List<Boolean> result = new ArrayList<>(Collections.nCopies(updates.size(), false));
+            toChunks(updates, chunkSize).forEach(chunk -> {
+                boolean success = write(chunk.request) != null;
+                chunk.indexes.forEach(index -> result.set(index, success));
+                if (success) {
+                    chunk.request.getUpdatesList().forEach(shadowStore::apply);
+                }
+            });
+            return result;
+        }
+
+        /**
+         * Same as writeBatch, but the chunks are written through the async stub without
+         * blocking the caller. A chunk is sent only after the previous one is acknowledged,
+         * so a later update never overtakes an earlier one it depends on, a group its
+         * member or a delete its insert. The future completes after the last chunk.
+         */
+        public ListenableFuture<List<Boolean>> writeBatchAsync(List<Update> updates, int chunkSize) {
+            List<Boolean> result = new ArrayList<>(Collections.nCopies(updates.size(), false));
+            ListenableFuture<List<Boolean>> chain = Futures.immediateFuture(result);
+            for (WriteChunk chunk : toChunks(updates, chunkSize)) {
+                chain = Futures.transform(chain, (AsyncFunction<List<Boolean>, List<Boolean>>) previous ->
+                        Futures.transform(writeResult(chunk.request), (Function<Boolean, List<Boolean>>) success -> {
+                            chunk.indexes.forEach(index -> result.set(index, success));
+                            if (success) {
+                                chunk.request.getUpdatesList().forEach(shadowStore::apply);
+                            }
+                            return result;
+                        }, MoreExecutors.directExecutor()),
+                        MoreExecutors.directExecutor());
+            }
+            return chain;
+        }
+
+        private List<WriteChunk> toChunks(List<Update> updates, int chunkSize) {
+            List<WriteChunk> chunks = new ArrayList<>();
+            WriteChunk chunk = new WriteChunk();
+            for (int i = 0; i < updates.size(); i++) {
+                try {
+                    chunk.requestBuilder.addUpdates(toUpdateMessage(updates.get(i)));
+                    chunk.indexes.add(i);
+                } catch (RuntimeException e) {
+                    LOG.info("Invalid update = {}, reason = {}.", updates.get(i).getUpdateId(), e.getMessage());
+                    continue;
+                }
+
+                if (chunk.indexes.size() >= chunkSize) {
+                    chunks.add(chunk.build());
+                    chunk = new WriteChunk();
+                }
+            }
+
+            if (!chunk.indexes.isEmpty()) {
+                chunks.add(chunk.build());
+            }
+            return chunks;
+        }
+
+        /**
+         * One write request of a batch, and the indexes of its updates in the batch.
+         */
+        private class WriteChunk {
+            private final org.opendaylight.p4plugin.p4runtime.proto.WriteRequest.Builder requestBuilder =
+                    org.opendaylight.p4plugin.p4runtime.proto.WriteRequest.newBuilder();
+            private final List<Integer> indexes = new ArrayList<>();
+            private org.opendaylight.p4plugin.p4runtime.proto.WriteRequest request;
+
+            private WriteChunk build() {
+                request = requestBuilder.setDeviceId(getDeviceId()).build();
+                return this;
+            }
+        }
+
+        private org.opendaylight.p4plugin.p4runtime.proto.Update toUpdateMessage(Update update) {
+            if (update.getType() == null) {
+                throw new IllegalArgumentException("Update type is null.");
+            }
+
+            org.opendaylight.p4plugin.p4runtime.proto.Update.Type type =
+                    org.opendaylight.p4plugin.p4runtime.proto.Update.Type.forNumber(update.getType().getIntValue());
+            boolean isDelete = type == org.opendaylight.p4plugin.p4runtime.proto.Update.Type.DELETE;
+            org.opendaylight.p4plugin.p4runtime.proto.Entity.Builder entityBuilder =
+                    org.opendaylight.p4plugin.p4runtime.proto.Entity.newBuilder();
+
+            if (update.getTableEntry() != null) {
+                entityBuilder.setTableEntry(isDelete ? toTableEntryMessage((EntryKey) update.getTableEntry())
+                                                     : toTableEntryMessage(update.getTableEntry()));
+            } else if (update.getActionProfileMember() != null) {
+                entityBuilder.setActionProfileMember(isDelete
+                        ? toActionProfileMemberMessage((MemberKey) update.getActionProfileMember())
+                        : toActionProfileMemberMessage(update.getActionProfileMember()));
+            } else if (update.getActionProfileGroup() != null) {
+                entityBuilder.setActionProfileGroup(isDelete
+                        ? toActionProfileGroupMessage((GroupKey) update.getActionProfileGroup())
+                        : toActionProfileGroupMessage(update.getActionProfileGroup()));
+            } else {
+                throw new IllegalArgumentException("Update entity is null.");
+            }
+
+            return org.opendaylight.p4plugin.p4runtime.proto.Update.newBuilder()
+                    .setType(type)
+                    .setEntity(entityBuilder)
+                    .build();
+        }
     }
 }
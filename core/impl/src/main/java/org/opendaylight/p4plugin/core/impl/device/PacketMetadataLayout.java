@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.device;
+
+import org.opendaylight.p4plugin.core.impl.utils.Utils;
+import org.opendaylight.p4plugin.core.impl.utils.ValueEncoder;
+import org.opendaylight.p4plugin.p4info.proto.ControllerPacketMetadata;
+import org.opendaylight.p4plugin.p4runtime.proto.PacketMetadata;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.packet.metadata.Metadata;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.p4plugin.core.packet.rev170808.packet.metadata.MetadataBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Layout of one controller header, packet_in or packet_out, compiled from the
+ * controller_packet_metadata of the P4Info. It turns the named metadata values
+ * into PacketMetadata messages and back, the fields in header order are found
+ * by position, the others by name or id.
+ */
+public class PacketMetadataLayout {
+    public static final String PACKET_IN = "packet_in";
+    public static final String PACKET_OUT = "packet_out";
+    private final int[] ids;
+    private final String[] names;
+    private final int[] widths;
+    private final Map<String, Integer> indexByName = new HashMap<>();
+    private final Map<Integer, Integer> indexById = new HashMap<>();
+
+    public PacketMetadataLayout(ControllerPacketMetadata header) {
+        int count = header.getMetadataCount();
+        ids = new int[count];
+        names = new String[count];
+        widths = new int[count];
+        for (int i = 0; i < count; i++) {
+            ControllerPacketMetadata.Metadata metadata = header.getMetadata(i);
+            ids[i] = metadata.getId();
+            names[i] = metadata.getName();
+            widths[i] = (metadata.getBitwidth() + 7) / 8;
+            indexByName.put(names[i], i);
+            indexById.put(ids[i], i);
+        }
+    }
+
+    /**
+     * Named values to packet_out metadata.
+     */
+    public List<PacketMetadata> encode(List<Metadata> metadataList) {
+        if (metadataList == null || metadataList.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<PacketMetadata> result = new ArrayList<>(metadataList.size());
+        for (int i = 0; i < metadataList.size(); i++) {
+            Metadata metadata = metadataList.get(i);
+            int index = indexOf(i, metadata.getName());
+            result.add(PacketMetadata.newBuilder()
+                    .setMetadataId(ids[index])
+                    .setValue(ValueEncoder.encode(metadata.getValue(), widths[index]))
+                    .build());
+        }
+        return result;
+    }
+
+    /**
+     * packet_in metadata to named values, an id unknown to the P4Info keeps the id as its name.
+     */
+    public List<Metadata> decode(List<PacketMetadata> metadataList) {
+        List<Metadata> result = new ArrayList<>(metadataList.size());
+        metadataList.forEach(metadata -> {
+            Integer index = indexById.get(metadata.getMetadataId());
+            result.add(new MetadataBuilder()
+                    .setName(index == null ? String.valueOf(metadata.getMetadataId()) : names[index])
+                    .setValue(Utils.byteStringToValueStr(metadata.getValue()))
+                    .build());
+        });
+        return result;
+    }
+
+    private int indexOf(int position, String name) {
+        if (position < names.length && names[position].equals(name)) {
+            return position;
+        }
+
+        Integer index = name == null ? null : indexByName.get(name);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown packet metadata " + name + ".");
+        }
+        return index;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.device;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import org.opendaylight.p4plugin.p4info.proto.P4Info;
+import org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigRequest.Action;
+import org.opendaylight.p4plugin.p4runtime.proto.SetForwardingPipelineConfigResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Staged pipeline rollout over a set of devices. The first wave sends
+ * VERIFY_AND_SAVE to all the devices in parallel, the switches check and stage
+ * the new pipeline but keep forwarding with the old one. Only if every device
+ * verified, the second wave sends COMMIT to all of them in parallel, so the
+ * fleet switches over within one round trip instead of one device after the
+ * other, and a pipeline rejected by one switch is not committed anywhere.
+ * The last rollouts are kept by id, their status can be read while they run.
+ */
+public class PipelineRollout {
+    private static final Logger LOG = LoggerFactory.getLogger(PipelineRollout.class);
+    private static final int KEPT_ROLLOUTS = 16;
+    private static final AtomicLong ROLLOUT_COUNT = new AtomicLong();
+    private static final Map<String, PipelineRollout> ROLLOUTS =
+            new LinkedHashMap<String, PipelineRollout>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PipelineRollout> eldest) {
+                    return size() > KEPT_ROLLOUTS;
+                }
+            };
+    private static volatile PipelineRollout latest;
+    private final String rolloutId;
+    private final P4Info runtimeInfo;
+    private final ByteString deviceConfig;
+    private final Map<String, DeviceStatus> status = new LinkedHashMap<>();
+    private final List<P4Device> devices = new ArrayList<>();
+    private volatile Phase phase = Phase.Pending;
+    private volatile boolean result;
+    private volatile long verifyMillis;
+    private volatile long commitMillis;
+
+    /**
+     * @param rolloutId id to read the status by, null to generate one.
+     * @param nodeIds devices to roll out, the ones not found or not connected fail the verify wave.
+     * @param runtimeInfo new P4Info, null to keep the one each device loaded.
+     * @param deviceConfig new device config, null to keep the one each device loaded.
+     */
+    public PipelineRollout(String rolloutId, List<String> nodeIds, P4Info runtimeInfo, ByteString deviceConfig) {
+        this.rolloutId = rolloutId == null ? "rollout-" + ROLLOUT_COUNT.incrementAndGet() : rolloutId;
+        this.runtimeInfo = runtimeInfo;
+        this.deviceConfig = deviceConfig;
+        DeviceManager manager = DeviceManager.getInstance();
+        for (String nodeId : nodeIds) {
+            if (status.containsKey(nodeId)) {
+                continue;
+            }
+            DeviceStatus deviceStatus = new DeviceStatus(nodeId);
+            status.put(nodeId, deviceStatus);
+            P4Device device = manager.findDevice(nodeId);
+            if (device == null) {
+                deviceStatus.reason = "Node does not exist.";
+            } else if (device.getDeviceState() != P4Device.State.Connected
+                    && device.getDeviceState() != P4Device.State.Configured) {
+                deviceStatus.reason = "Node is not connected.";
+            } else {
+                devices.add(device);
+            }
+        }
+    }
+
+    /**
+     * @param rolloutId the id of a kept rollout, null for the latest one.
+     * @return null if there is no such rollout.
+     */
+    public static PipelineRollout findRollout(String rolloutId) {
+        if (rolloutId == null) {
+            return latest;
+        }
+        synchronized (ROLLOUTS) {
+            return ROLLOUTS.get(rolloutId);
+        }
+    }
+
+    /**
+     * @return completes with true if all the devices committed the new pipeline.
+     */
+    public ListenableFuture<Boolean> start() {
+        synchronized (ROLLOUTS) {
+            ROLLOUTS.put(rolloutId, this);
+            latest = this;
+        }
+
+        if (devices.size() != status.size() || devices.isEmpty()) {
+            LOG.info("Pipeline rollout {} aborted, {} of {} nodes can not be verified.",
+                    rolloutId, status.size() - devices.size(), status.size());
+            phase = Phase.Aborted;
+            return Futures.immediateFuture(false);
+        }
+
+        if (runtimeInfo != null || deviceConfig != null) {
+            try {
+                devices.forEach(device -> device.stagePipeline(runtimeInfo, deviceConfig));
+            } catch (RuntimeException e) {
+                LOG.info("Pipeline rollout {} aborted, staging failed: {}.", rolloutId, e.getMessage());
+                devices.forEach(P4Device::discardStagedPipeline);
+                status.values().forEach(s -> s.reason = "Staging failed: " + e.getMessage());
+                phase = Phase.Aborted;
+                return Futures.immediateFuture(false);
+            }
+        } else {
+            devices.forEach(P4Device::discardStagedPipeline);
+        }
+
+        LOG.info("Pipeline rollout {} verify wave started, nodes = {}.", rolloutId, devices.size());
+        phase = Phase.Verifying;
+        long verifyStart = System.nanoTime();
+        ListenableFuture<List<Boolean>> verified = wave(Action.VERIFY_AND_SAVE);
+        return Futures.transform(verified, (AsyncFunction<List<Boolean>, Boolean>) results -> {
+            verifyMillis = (System.nanoTime() - verifyStart) / 1000000;
+            if (results.contains(false)) {
+                LOG.info("Pipeline rollout {} verify wave failed in {} ms, nothing committed.",
+                        rolloutId, verifyMillis);
+                devices.forEach(P4Device::discardStagedPipeline);
+                phase = Phase.Aborted;
+                return Futures.immediateFuture(false);
+            }
+
+            LOG.info("Pipeline rollout {} verify wave done in {} ms, commit wave started.", rolloutId, verifyMillis);
+            phase = Phase.Committing;
+            long commitStart = System.nanoTime();
+            return Futures.transform(wave(Action.COMMIT), (Function<List<Boolean>, Boolean>) committed -> {
+                commitMillis = (System.nanoTime() - commitStart) / 1000000;
+                result = !committed.contains(false);
+                phase = Phase.Done;
+                LOG.info("Pipeline rollout {} commit wave {} in {} ms.",
+                        rolloutId, result ? "done" : "failed", commitMillis);
+                return result;
+            }, MoreExecutors.directExecutor());
+        }, MoreExecutors.directExecutor());
+    }
+
+    private ListenableFuture<List<Boolean>> wave(Action action) {
+        List<ListenableFuture<Boolean>> futures = new ArrayList<>(devices.size());
+        devices.forEach(device -> futures.add(send(device, action)));
+        return Futures.allAsList(futures);
+    }
+
+    private ListenableFuture<Boolean> send(P4Device device, Action action) {
+        DeviceStatus deviceStatus = status.get(device.getNodeId());
+        SettableFuture<Boolean> result = SettableFuture.create();
+        long start = System.nanoTime();
+        ListenableFuture<SetForwardingPipelineConfigResponse> response;
+        try {
+            response = device.setPipelineConfigAsync(action);
+        } catch (RuntimeException e) {
+            response = Futures.immediateFailedFuture(e);
+        }
+
+        Futures.addCallback(response, new FutureCallback<SetForwardingPipelineConfigResponse>() {
+            @Override
+            public void onSuccess(SetForwardingPipelineConfigResponse r) {
+                long millis = (System.nanoTime() - start) / 1000000;
+                if (action == Action.COMMIT) {
+                    deviceStatus.committed = true;
+                    deviceStatus.commitMillis = millis;
+                } else {
+                    deviceStatus.verified = true;
+                    deviceStatus.verifyMillis = millis;
+                }
+                result.set(true);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOG.info("Pipeline rollout {} failed, node = {}, reason = {}.",
+                        action, device.getNodeId(), t.getMessage());
+                deviceStatus.reason = action + " failed: " + t.getMessage();
+                if (action == Action.COMMIT) {
+                    device.discardStagedPipeline();
+                }
+                result.set(false);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    public String getRolloutId() {
+        return rolloutId;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * True once every device committed, false while the rollout runs.
+     */
+    public boolean isCommitted() {
+        return result;
+    }
+
+    /**
+     * Time of the verify wave in milliseconds, 0 if it did not run.
+     */
+    public long getVerifyMillis() {
+        return verifyMillis;
+    }
+
+    /**
+     * Time of the commit wave in milliseconds, 0 if it did not run.
+     */
+    public long getCommitMillis() {
+        return commitMillis;
+    }
+
+    /**
+     * The status of every device, updated as the answers come in.
+     */
+    public List<DeviceStatus> getStatus() {
+        return Collections.unmodifiableList(new ArrayList<>(status.values()));
+    }
+
+    public enum Phase {
+        Pending,
+        Verifying,
+        Committing,
+        Done,
+        Aborted
+    }
+
+    public static final class DeviceStatus {
+        private final String nodeId;
+        private volatile boolean verified;
+        private volatile boolean committed;
+        private volatile long verifyMillis;
+        private volatile long commitMillis;
+        private volatile String reason;
+
+        private DeviceStatus(String nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public boolean isVerified() {
+            return verified;
+        }
+
+        public boolean isCommitted() {
+            return committed;
+        }
+
+        public long getVerifyMillis() {
+            return verifyMillis;
+        }
+
+        public long getCommitMillis() {
+            return commitMillis;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.device;
+
+import io.grpc.Context;
+import org.opendaylight.p4plugin.core.impl.connection.P4RuntimeStub;
+import org.opendaylight.p4plugin.p4runtime.proto.Entity;
+import org.opendaylight.p4plugin.p4runtime.proto.ReadRequest;
+import org.opendaylight.p4plugin.p4runtime.proto.ReadResponse;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read entity iterator flattens the streaming read responses into entities, the
+ * next response is pulled from gRPC only when the entities of the current one
+ * have been consumed, so the memory is bounded by one response whatever the size
+ * of the table. Closing the iterator before the end cancels the read RPC.
+ */
+public class ReadEntityIterator implements Iterator<Entity>, AutoCloseable {
+    private final Context.CancellableContext context;
+    private final Iterator<ReadResponse> responses;
+    private Iterator<Entity> entities = Collections.emptyIterator();
+    private boolean completed;
+
+    public ReadEntityIterator(P4RuntimeStub stub, ReadRequest request) {
+        context = Context.current().withCancellation();
+        Context previous = context.attach();
+        try {
+            responses = stub.read(request);
+        } finally {
+            context.detach(previous);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!entities.hasNext()) {
+            if (completed || !responses.hasNext()) {
+                return false;
+            }
+            ReadResponse response = responses.next();
+            entities = response.getEntitiesList().iterator();
+            completed = response.getComplete();
+        }
+        return true;
+    }
+
+    @Override
+    public Entity next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return entities.next();
+    }
+
+    @Override
+    public void close() {
+        context.cancel(null);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.device;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * One page of a read, the next offset is null when there are no more entries.
+ */
+public class ReadPage<T> {
+    private final List<T> content;
+    private final Long nextOffset;
+
+    private ReadPage(List<T> content, Long nextOffset) {
+        this.content = content;
+        this.nextOffset = nextOffset;
+    }
+
+    public List<T> getContent() {
+        return content;
+    }
+
+    public Long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Skip offset items of the source and convert at most limit items, the source
+     * is consumed lazily and only one more item is pulled to find out whether
+     * there is a next page.
+     * @param limit max number of items in the page, 0 means no limit.
+     */
+    public static <S, T> ReadPage<T> of(Iterator<S> source, long offset, long limit, Function<S, T> converter) {
+        List<T> content = new ArrayList<>();
+        for (long i = 0; i < offset && source.hasNext(); i++) {
+            source.next();
+        }
+
+        while (source.hasNext() && (limit == 0 || content.size() < limit)) {
+            content.add(converter.apply(source.next()));
+        }
+        return new ReadPage<>(content, source.hasNext() ? offset + content.size() : null);
+    }
+}
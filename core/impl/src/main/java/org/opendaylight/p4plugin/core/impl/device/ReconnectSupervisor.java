@@ -0,0 +1,182 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.device;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconnect supervisor of one device. When the stream channel is lost the device
+ * goes back to Connecting and the stream is reopened after a jittered exponential
+ * backoff, until the switch answers the arbitration update again. The device then
+ * restores its pipeline and entries, see P4Device.restore, an incomplete restore
+ * counts as a failed attempt. After maxAttempts failed attempts, 0 means no
+ * limit, the device is removed as before.
+ */
+public class ReconnectSupervisor {
+    private static final Logger LOG = LoggerFactory.getLogger(ReconnectSupervisor.class);
+    //restoring one device blocks on its pipeline push and replay, a few threads keep the others going
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4,
+            new ThreadFactoryBuilder().setNameFormat("p4plugin-reconnect-%d").setDaemon(true).build());
+    private static volatile boolean enabled = true;
+    private static volatile long initialBackoffMillis = 500;
+    private static volatile long maxBackoffMillis = 30000;
+    private static volatile int maxAttempts = 0;
+    private final P4Device device;
+    private boolean running;
+    private boolean lostAgain;
+    private boolean wasConfigured;
+    private int attempt;
+    private ScheduledFuture<?> pending;
+
+    ReconnectSupervisor(P4Device device) {
+        this.device = device;
+    }
+
+    /**
+     * @param reconnect false removes the device on stream loss, as before.
+     * @param initialBackoff first delay in milliseconds, doubled on every failed attempt.
+     * @param maxBackoff longest delay in milliseconds.
+     * @param attempts attempts before the device is removed, 0 means no limit.
+     */
+    public static void configure(boolean reconnect, long initialBackoff, long maxBackoff, int attempts) {
+        enabled = reconnect;
+        initialBackoffMillis = initialBackoff;
+        maxBackoffMillis = maxBackoff;
+        maxAttempts = attempts;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param configured whether the device had its pipeline pushed before the loss.
+     */
+    synchronized void start(boolean configured) {
+        if (running) {
+            return;
+        }
+        running = true;
+        wasConfigured = configured;
+        attempt = 0;
+        device.setDeviceState(P4Device.State.Connecting);
+        LOG.info("Device = {} stream lost, reconnecting.", device.getNodeId());
+        schedule();
+    }
+
+    /**
+     * Called on every stream loss of the device.
+     * @return true if the supervisor owns the device, the loss then fails the attempt in progress.
+     */
+    synchronized boolean onLost() {
+        if (!running) {
+            return false;
+        }
+        lostAgain = true;
+        return true;
+    }
+
+    synchronized void stop() {
+        running = false;
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+
+    private void schedule() {
+        long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt, 20));
+        //full jitter on the upper half, so the devices of one server do not come back in lockstep
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        pending = scheduler.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            attempt++;
+            lostAgain = false;
+        }
+        Futures.addCallback(device.connectToDeviceAsync(), new FutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean connected) {
+                if (connected) {
+                    scheduler.execute(ReconnectSupervisor.this::restore);
+                } else {
+                    retry(null);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                retry(t);
+            }
+        }, scheduler);
+    }
+
+    /**
+     * The supervisor keeps the device until the restore is done, a stream lost or a
+     * write failed meanwhile sends the device back to Connecting for the next attempt.
+     */
+    private void restore() {
+        boolean configured;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            pending = null;
+            configured = wasConfigured;
+        }
+        LOG.info("Device = {} reconnected after {} attempts.", device.getNodeId(), attempt);
+        P4Device.State restored = device.restore(configured);
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            if (restored == null || lostAgain) {
+                device.setDeviceState(P4Device.State.Connecting);
+                LOG.info("Device = {} restore incomplete, stream lost = {}.", device.getNodeId(), lostAgain);
+                if (!lostAgain) {
+                    //the next attempt opens a new stream, do not leave this one behind
+                    device.closeStream();
+                }
+                retry(null);
+                return;
+            }
+            running = false;
+            device.setDeviceState(restored);
+        }
+    }
+
+    private synchronized void retry(Throwable t) {
+        if (!running) {
+            return;
+        }
+        if (maxAttempts > 0 && attempt >= maxAttempts) {
+            running = false;
+            LOG.info("Device = {} reconnect gave up after {} attempts.", device.getNodeId(), attempt);
+            scheduler.execute(() -> DeviceManager.getInstance().removeDevice(device.getNodeId()));
+            return;
+        }
+        LOG.debug("Device = {} reconnect attempt {} failed, reason = {}.", device.getNodeId(), attempt,
+                t == null ? "stream closed" : t.getMessage());
+        schedule();
+    }
+}
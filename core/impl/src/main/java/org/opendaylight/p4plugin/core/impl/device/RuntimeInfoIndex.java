@@ -0,0 +1,237 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.device;
+
+import org.opendaylight.p4plugin.p4info.proto.MatchField;
+import org.opendaylight.p4plugin.p4info.proto.P4Info;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runtime info index is built only once when the P4Info is loaded, it maps the
+ * table, match field, action, param and action profile names to ids and back,
+ * and records the widths in bytes, so the lookups no longer scan the P4Info lists.
+ * The tables and actions also keep their fields and params in the P4Info order
+ * together with the match kinds, which makes them the encoding plans of the
+ * table entries and action profile members.
+ */
+public class RuntimeInfoIndex {
+    private final Map<String, TableInfo> tablesByName = new HashMap<>();
+    private final Map<Integer, TableInfo> tablesById = new HashMap<>();
+    private final Map<String, ActionInfo> actionsByName = new HashMap<>();
+    private final Map<Integer, ActionInfo> actionsById = new HashMap<>();
+    private final Map<String, Integer> actionProfileIds = new HashMap<>();
+    private final Map<Integer, String> actionProfileNames = new HashMap<>();
+    private PacketMetadataLayout packetInLayout;
+    private PacketMetadataLayout packetOutLayout;
+
+    public RuntimeInfoIndex(P4Info runtimeInfo) {
+        runtimeInfo.getTablesList().forEach(table -> {
+            TableInfo info = new TableInfo(table.getPreamble().getId(), table.getPreamble().getName());
+            table.getMatchFieldsList().forEach(field -> {
+                FieldInfo fieldInfo = new FieldInfo(field.getId(), field.getName(),
+                        field.getBitwidth(), field.getMatchType());
+                info.fields.add(fieldInfo);
+                info.fieldsByName.put(fieldInfo.name, fieldInfo);
+                info.fieldsById.put(fieldInfo.id, fieldInfo);
+            });
+            tablesByName.put(info.name, info);
+            tablesById.put(info.id, info);
+        });
+
+        runtimeInfo.getActionsList().forEach(action -> {
+            ActionInfo info = new ActionInfo(action.getPreamble().getId(), action.getPreamble().getName());
+            action.getParamsList().forEach(param -> {
+                FieldInfo paramInfo = new FieldInfo(param.getId(), param.getName(),
+                        param.getBitwidth(), MatchField.MatchType.UNSPECIFIED);
+                info.params.add(paramInfo);
+                info.paramsByName.put(paramInfo.name, paramInfo);
+                info.paramsById.put(paramInfo.id, paramInfo);
+            });
+            actionsByName.put(info.name, info);
+            actionsById.put(info.id, info);
+        });
+
+        runtimeInfo.getActionProfilesList().forEach(actionProfile -> {
+            actionProfileIds.put(actionProfile.getPreamble().getName(), actionProfile.getPreamble().getId());
+            actionProfileNames.put(actionProfile.getPreamble().getId(), actionProfile.getPreamble().getName());
+        });
+
+        runtimeInfo.getControllerPacketMetadataList().forEach(header -> {
+            if (PacketMetadataLayout.PACKET_IN.equals(header.getPreamble().getName())) {
+                packetInLayout = new PacketMetadataLayout(header);
+            } else if (PacketMetadataLayout.PACKET_OUT.equals(header.getPreamble().getName())) {
+                packetOutLayout = new PacketMetadataLayout(header);
+            }
+        });
+    }
+
+    /**
+     * @return null if the P4 program has no packet_in controller header.
+     */
+    public PacketMetadataLayout getPacketInLayout() {
+        return packetInLayout;
+    }
+
+    /**
+     * @return null if the P4 program has no packet_out controller header.
+     */
+    public PacketMetadataLayout getPacketOutLayout() {
+        return packetOutLayout;
+    }
+
+    public TableInfo getTable(String tableName) {
+        return tableName == null ? null : tablesByName.get(tableName);
+    }
+
+    public TableInfo getTable(int tableId) {
+        return tablesById.get(tableId);
+    }
+
+    public ActionInfo getAction(String actionName) {
+        return actionName == null ? null : actionsByName.get(actionName);
+    }
+
+    public ActionInfo getAction(int actionId) {
+        return actionsById.get(actionId);
+    }
+
+    public int getActionProfileId(String actionProfileName) {
+        Integer id = actionProfileName == null ? null : actionProfileIds.get(actionProfileName);
+        return id == null ? 0 : id;
+    }
+
+    public String getActionProfileName(int actionProfileId) {
+        return actionProfileNames.get(actionProfileId);
+    }
+
+    public static final class TableInfo {
+        private final int id;
+        private final String name;
+        private final List<FieldInfo> fields = new ArrayList<>();
+        private final Map<String, FieldInfo> fieldsByName = new HashMap<>();
+        private final Map<Integer, FieldInfo> fieldsById = new HashMap<>();
+
+        private TableInfo(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public FieldInfo getField(String fieldName) {
+            return fieldName == null ? null : fieldsByName.get(fieldName);
+        }
+
+        public FieldInfo getField(int fieldId) {
+            return fieldsById.get(fieldId);
+        }
+
+        /**
+         * Field at the position if its name matches, so the fields given in the
+         * P4Info order never hit the name map.
+         */
+        public FieldInfo getField(int position, String fieldName) {
+            if (position < fields.size() && fields.get(position).name.equals(fieldName)) {
+                return fields.get(position);
+            }
+            return getField(fieldName);
+        }
+
+        public List<FieldInfo> getFields() {
+            return Collections.unmodifiableList(fields);
+        }
+    }
+
+    public static final class ActionInfo {
+        private final int id;
+        private final String name;
+        private final List<FieldInfo> params = new ArrayList<>();
+        private final Map<String, FieldInfo> paramsByName = new HashMap<>();
+        private final Map<Integer, FieldInfo> paramsById = new HashMap<>();
+
+        private ActionInfo(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public FieldInfo getParam(String paramName) {
+            return paramName == null ? null : paramsByName.get(paramName);
+        }
+
+        public FieldInfo getParam(int paramId) {
+            return paramsById.get(paramId);
+        }
+
+        /**
+         * Param at the position if its name matches, see TableInfo.getField.
+         */
+        public FieldInfo getParam(int position, String paramName) {
+            if (position < params.size() && params.get(position).name.equals(paramName)) {
+                return params.get(position);
+            }
+            return getParam(paramName);
+        }
+
+        public List<FieldInfo> getParams() {
+            return Collections.unmodifiableList(params);
+        }
+    }
+
+    /**
+     * A match field or an action param, the width is in bytes, the match kind of
+     * an action param is UNSPECIFIED.
+     */
+    public static final class FieldInfo {
+        private final int id;
+        private final String name;
+        private final int width;
+        private final MatchField.MatchType matchType;
+
+        private FieldInfo(int id, String name, int bitWidth, MatchField.MatchType matchType) {
+            this.id = id;
+            this.name = name;
+            this.width = (bitWidth + 7) / 8;
+            this.matchType = matchType;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public MatchField.MatchType getMatchType() {
+            return matchType;
+        }
+    }
+}
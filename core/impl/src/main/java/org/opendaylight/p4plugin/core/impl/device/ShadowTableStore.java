@@ -0,0 +1,173 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.device;
+
+import com.google.protobuf.ByteString;
+import org.opendaylight.p4plugin.p4runtime.proto.ActionProfileGroup;
+import org.opendaylight.p4plugin.p4runtime.proto.ActionProfileMember;
+import org.opendaylight.p4plugin.p4runtime.proto.Entity;
+import org.opendaylight.p4plugin.p4runtime.proto.FieldMatch;
+import org.opendaylight.p4plugin.p4runtime.proto.TableEntry;
+import org.opendaylight.p4plugin.p4runtime.proto.Update;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Shadow table store is the controller side copy of what has been written to
+ * one device, it is updated on every successful write. Table entries are keyed
+ * by table id plus the canonical match bytes, members and groups are keyed by
+ * action profile id plus member or group id.
+ */
+public class ShadowTableStore {
+    private final ConcurrentHashMap<MatchKey, TableEntry> tableEntries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, ActionProfileMember> members = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, ActionProfileGroup> groups = new ConcurrentHashMap<>();
+
+    /**
+     * Apply an update which has been accepted by the device.
+     */
+    public void apply(Update update) {
+        boolean isDelete = update.getType() == Update.Type.DELETE;
+        Entity entity = update.getEntity();
+        switch (entity.getEntityCase()) {
+            case TABLE_ENTRY: {
+                TableEntry entry = entity.getTableEntry();
+                if (isDelete) {
+                    tableEntries.remove(new MatchKey(entry));
+                } else {
+                    tableEntries.put(new MatchKey(entry), entry);
+                }
+                break;
+            }
+
+            case ACTION_PROFILE_MEMBER: {
+                ActionProfileMember member = entity.getActionProfileMember();
+                long key = toKey(member.getActionProfileId(), member.getMemberId());
+                if (isDelete) {
+                    members.remove(key);
+                } else {
+                    members.put(key, member);
+                }
+                break;
+            }
+
+            case ACTION_PROFILE_GROUP: {
+                ActionProfileGroup group = entity.getActionProfileGroup();
+                long key = toKey(group.getActionProfileId(), group.getGroupId());
+                if (isDelete) {
+                    groups.remove(key);
+                } else {
+                    groups.put(key, group);
+                }
+                break;
+            }
+
+            default:break;
+        }
+    }
+
+    public void clear() {
+        tableEntries.clear();
+        members.clear();
+        groups.clear();
+    }
+
+    /**
+     * @param tableId table id, 0 means all the tables.
+     */
+    public List<TableEntry> getTableEntries(int tableId) {
+        return tableEntries.entrySet().stream()
+                .filter(e -> tableId == 0 || e.getKey().tableId == tableId)
+                .map(Map.Entry::getValue)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param actionProfileId action profile id, 0 means all the action profiles.
+     */
+    public List<ActionProfileMember> getActionProfileMembers(int actionProfileId) {
+        return members.values().stream()
+                .filter(member -> actionProfileId == 0 || member.getActionProfileId() == actionProfileId)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param actionProfileId action profile id, 0 means all the action profiles.
+     */
+    public List<ActionProfileGroup> getActionProfileGroups(int actionProfileId) {
+        return groups.values().stream()
+                .filter(group -> actionProfileId == 0 || group.getActionProfileId() == actionProfileId)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Everything in the store as insert updates, members before the groups
+     * referring to them and both before the table entries, to restore a device
+     * which has lost its state.
+     */
+    public List<Update> toReplayUpdates() {
+        List<Update> updates = new ArrayList<>(members.size() + groups.size() + tableEntries.size());
+        members.values().forEach(member -> updates.add(toInsert(
+                Entity.newBuilder().setActionProfileMember(member).build())));
+        groups.values().forEach(group -> updates.add(toInsert(
+                Entity.newBuilder().setActionProfileGroup(group).build())));
+        tableEntries.values().forEach(entry -> updates.add(toInsert(
+                Entity.newBuilder().setTableEntry(entry).build())));
+        return updates;
+    }
+
+    private static Update toInsert(Entity entity) {
+        return Update.newBuilder().setType(Update.Type.INSERT).setEntity(entity).build();
+    }
+
+    private static long toKey(int actionProfileId, int id) {
+        return ((long) actionProfileId << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Table id plus the match fields sorted by field id and the priority, the
+     * order of the match fields in the write request does not matter.
+     */
+    private static final class MatchKey {
+        private final int tableId;
+        private final ByteString match;
+
+        private MatchKey(TableEntry entry) {
+            List<FieldMatch> fields = new ArrayList<>(entry.getMatchList());
+            fields.sort(Comparator.comparingInt(FieldMatch::getFieldId));
+            this.tableId = entry.getTableId();
+            this.match = TableEntry.newBuilder()
+                    .addAllMatch(fields)
+                    .setPriority(entry.getPriority())
+                    .build()
+                    .toByteString();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MatchKey)) {
+                return false;
+            }
+            MatchKey other = (MatchKey) o;
+            return tableId == other.tableId && match.equals(other.match);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * tableId + match.hashCode();
+        }
+    }
+}
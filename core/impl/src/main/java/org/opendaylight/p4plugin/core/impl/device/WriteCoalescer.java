@@ -0,0 +1,165 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.device;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.opendaylight.p4plugin.p4runtime.proto.Update;
+import org.opendaylight.p4plugin.p4runtime.proto.WriteRequest;
+import org.opendaylight.p4plugin.p4runtime.proto.WriteResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write coalescer collects the single updates of one device for up to maxUpdates
+ * updates or lingerMicros microseconds, whichever comes first, and sends them in
+ * one write request. Every caller's future is completed from the shared response,
+ * so if the switch rejects the request, all the updates in it fail together. A
+ * batch is sent only after the previous one is acknowledged, whichever thread
+ * drained it, so the updates reach the switch in the order they were submitted.
+ */
+public class WriteCoalescer {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteCoalescer.class);
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("p4plugin-write-coalescer-%d").setDaemon(true).build());
+    private static volatile long writeTimeoutMillis = 5000;
+    private final P4Device device;
+    private final int maxUpdates;
+    private final long lingerMicros;
+    private List<PendingUpdate> pending = new ArrayList<>();
+    private ScheduledFuture<?> lingerTask;
+    private ListenableFuture<Object> lastSend = Futures.immediateFuture(null);
+
+    public WriteCoalescer(P4Device device, int maxUpdates, long lingerMicros) {
+        this.device = device;
+        this.maxUpdates = maxUpdates;
+        this.lingerMicros = lingerMicros;
+    }
+
+    /**
+     * @param timeoutMillis how long a blocking writer waits for its coalesced update.
+     */
+    public static void setWriteTimeout(long timeoutMillis) {
+        writeTimeoutMillis = timeoutMillis;
+    }
+
+    public static long getWriteTimeout() {
+        return writeTimeoutMillis;
+    }
+
+    public int getMaxUpdates() {
+        return maxUpdates;
+    }
+
+    public long getLingerMicros() {
+        return lingerMicros;
+    }
+
+    /**
+     * Queue an update, the first update of a batch starts the linger timer, the
+     * update filling the batch sends it right away on the caller thread.
+     * @param update update message.
+     * @return the result of the write request the update is sent in.
+     */
+    public ListenableFuture<Boolean> submit(Update update) {
+        SettableFuture<Boolean> future = SettableFuture.create();
+        synchronized (this) {
+            pending.add(new PendingUpdate(update, future));
+            if (pending.size() >= maxUpdates) {
+                enqueue(drain());
+            } else if (pending.size() == 1) {
+                lingerTask = scheduler.schedule(this::flush, lingerMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Send the queued updates right now, used by the linger timer and on shutdown.
+     */
+    public synchronized void flush() {
+        List<PendingUpdate> batch = drain();
+        if (!batch.isEmpty()) {
+            enqueue(batch);
+        }
+    }
+
+    /**
+     * Called under the lock, the batches are chained in the order they are drained.
+     */
+    private void enqueue(List<PendingUpdate> batch) {
+        lastSend = Futures.transform(lastSend, (AsyncFunction<Object, Object>) previous -> send(batch),
+                MoreExecutors.directExecutor());
+    }
+
+    private List<PendingUpdate> drain() {
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+        List<PendingUpdate> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+
+    /**
+     * @return completes, never fails, when the switch answered the write request.
+     */
+    private ListenableFuture<Object> send(List<PendingUpdate> batch) {
+        SettableFuture<Object> done = SettableFuture.create();
+        WriteRequest.Builder requestBuilder = WriteRequest.newBuilder();
+        requestBuilder.setDeviceId(device.getDeviceId());
+        batch.forEach(p -> requestBuilder.addUpdates(p.update));
+
+        ListenableFuture<WriteResponse> response;
+        try {
+            response = device.writeAsync(requestBuilder.build());
+        } catch (RuntimeException e) {
+            response = Futures.immediateFailedFuture(e);
+        }
+
+        Futures.addCallback(response, new FutureCallback<WriteResponse>() {
+            @Override
+            public void onSuccess(WriteResponse result) {
+                batch.forEach(p -> p.future.set(true));
+                done.set(null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOG.info("Coalesced write RPC failed, node = {}, updates = {}, reason = {}.",
+                        device.getNodeId(), batch.size(), t.getMessage());
+                batch.forEach(p -> p.future.set(false));
+                done.set(null);
+            }
+        }, MoreExecutors.directExecutor());
+        return done;
+    }
+
+    private static final class PendingUpdate {
+        private final Update update;
+        private final SettableFuture<Boolean> future;
+
+        private PendingUpdate(Update update, SettableFuture<Boolean> future) {
+            this.update = update;
+            this.future = future;
+        }
+    }
+}
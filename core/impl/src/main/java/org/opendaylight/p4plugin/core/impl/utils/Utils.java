@@ -12,8 +12,11 @@ import com.google.protobuf.ByteString;
 import com.google.protobuf.TextFormat;
 import org.opendaylight.p4plugin.p4info.proto.*;
 import java.io.*;
+import java.math.BigInteger;
 
 public abstract class Utils {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * Parses the device config and runtime resource files generated by compiler.
      * For example:
@@ -50,37 +53,10 @@ public abstract class Utils {
     }
 
     /**
-     * Only support ipv4 address, mac address and integer value.
+     * Supports ipv4, ipv6 and mac address, decimal and hex integer, see ValueEncoder.
      */
     public static byte[] strToByteArray(String str, int len) {
-        String[] strArray = null;
-        byte[] byteArray = null;
-
-        /* regular ipv4 address match (1~255).(0~255).(0~255).(0~255) */
-        if (str.matches("([1-9]|[1-9]\\d|1\\d{2}|2[0-4]|25[0-5])\\."
-                + "((\\d|[1-9]\\d|1\\d{2}|2[0-4]\\d|25[0-5])\\.){2}"
-                + "(\\d|[1-9]\\d|1\\d{2}|2[0-4]\\d|25[0-5])")) {
-            strArray = str.split("\\.");
-            byteArray = new byte[strArray.length];
-            assert (len == strArray.length);
-            for (int i = 0; i < strArray.length; i++) {
-                byteArray[i] = (byte) Integer.parseInt(strArray[i]);
-            }
-        } else if (str.matches("([0-9a-fA-F]{1,2}:){5}[0-9a-fA-F]{1,2}")) { /* mac address,aa:bb:cc:dd:ee:ff,1:2:3:4:5:6 */
-            strArray = str.split(":");
-            byteArray = new byte[strArray.length];
-            assert (len == strArray.length);
-            for (int i = 0; i < strArray.length; i++) {
-                byteArray[i] = (byte) Integer.parseInt(strArray[i], 16);
-            }
-        } else {
-            int value = Integer.parseInt(str);
-            byteArray = new byte[len];
-            for (int i = 0; i < len; i++) {
-                byteArray[i] = (byte) (value >> ((len - i - 1) * 8) & 0xFF);
-            }
-        }
-        return byteArray;
+        return ValueEncoder.encode(str, len).toByteArray();
     }
 
     public static String byteArrayToStr(byte[] input) {
@@ -92,6 +68,41 @@ public abstract class Utils {
         return new String(buffer);
     }
 
+    /**
+     * Render a value in a form ValueEncoder accepts, 4 bytes as ipv4 address,
+     * 6 bytes as mac address, others as unsigned decimal integer.
+     */
+    public static String byteStringToValueStr(ByteString value) {
+        int size = value.size();
+        StringBuilder builder = new StringBuilder(size * 4);
+        if (size == 4) {
+            for (int i = 0; i < size; i++) {
+                builder.append(i == 0 ? "" : ".").append(value.byteAt(i) & 0xFF);
+            }
+        } else if (size == 6) {
+            for (int i = 0; i < size; i++) {
+                int v = value.byteAt(i) & 0xFF;
+                builder.append(i == 0 ? "" : ":").append(HEX_DIGITS[v >>> 4]).append(HEX_DIGITS[v & 0x0F]);
+            }
+        } else if (size <= 7) {
+            builder.append(byteStringToLong(value));
+        } else {
+            builder.append(new BigInteger(1, value.toByteArray()).toString());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Unsigned big-endian value of at most 8 bytes.
+     */
+    public static long byteStringToLong(ByteString value) {
+        long result = 0;
+        for (int i = 0; i < value.size(); i++) {
+            result = (result << 8) | (value.byteAt(i) & 0xFF);
+        }
+        return result;
+    }
+
     public static byte[] intToByteArray(final int integer) {
         int byteNum = (40 - Integer.numberOfLeadingZeros (integer < 0 ? ~integer : integer)) / 8;
         byte[] byteArray = new byte[4];
@@ -0,0 +1,316 @@
+/*
+ * Copyright © 2017 zte and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.p4plugin.core.impl.utils;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * Value encoder turns the match field and action param strings into big-endian
+ * bytes of the given width, without regex and without intermediate arrays.
+ * Supported formats are ipv4 address (10.0.0.1), ipv6 address (2001:db8::1,
+ * no embedded ipv4), mac address (aa:bb:cc:dd:ee:ff), decimal integer and hex
+ * integer (0x0a0b), the integers may be of any width. The value is right-aligned
+ * and zero-padded, a value which does not fit in the width is rejected.
+ */
+public final class ValueEncoder {
+    private static final int MAX_NATURAL_WIDTH = 64;
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[MAX_NATURAL_WIDTH]);
+
+    private ValueEncoder() {}
+
+    /**
+     * Encode the value to a byte string of width bytes. The bytes are written
+     * once into an array owned by the returned byte string, no copy is made.
+     * @param width width in bytes, 0 means the natural width of the value, that
+     *              is 4 for ipv4, 16 for ipv6, 6 for mac, and the fewest bytes
+     *              holding the integer.
+     */
+    public static ByteString encode(String value, int width) {
+        if (width > 0) {
+            byte[] bytes = new byte[width];
+            encode(value, bytes, 0, width);
+            return UnsafeByteOperations.unsafeWrap(bytes);
+        }
+
+        byte[] buffer = BUFFER.get();
+        int naturalWidth = naturalWidth(value);
+        encode(value, buffer, 0, naturalWidth);
+        int start = 0;
+        if (isInteger(value)) {
+            while (start < naturalWidth - 1 && buffer[start] == 0) {
+                start++;
+            }
+        }
+        return ByteString.copyFrom(buffer, start, naturalWidth - start);
+    }
+
+    /**
+     * Encode an unsigned integer to a byte string of width bytes.
+     */
+    public static ByteString encode(long value, int width) {
+        byte[] bytes = new byte[width];
+        for (int i = width - 1; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        if (value != 0) {
+            throw new IllegalArgumentException("Value does not fit in " + width + " bytes.");
+        }
+        return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    /**
+     * Encode the value into a caller supplied buffer.
+     * @param out output buffer.
+     * @param offset where the value starts in the buffer.
+     * @param width width in bytes, bytes offset to offset + width are all written.
+     */
+    public static void encode(String value, byte[] out, int offset, int width) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Empty value.");
+        }
+
+        int colons = 0;
+        int dots = 0;
+        boolean doubleColon = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ':') {
+                colons++;
+                doubleColon |= i > 0 && value.charAt(i - 1) == ':';
+            } else if (c == '.') {
+                dots++;
+            }
+        }
+
+        if (colons == 5 && !doubleColon) {
+            encodeMac(value, out, offset, width);
+        } else if (colons > 0) {
+            encodeIpv6(value, out, offset, width);
+        } else if (dots == 3) {
+            encodeIpv4(value, out, offset, width);
+        } else if (value.length() > 2 && value.charAt(0) == '0'
+                && (value.charAt(1) == 'x' || value.charAt(1) == 'X')) {
+            encodeHex(value, 2, out, offset, width);
+        } else {
+            encodeDecimal(value, out, offset, width);
+        }
+    }
+
+    /**
+     * Mask with the leading prefixLen bits set, for lpm style ternary masks.
+     */
+    public static ByteString prefixMask(int prefixLen, int width) {
+        if (prefixLen < 0 || prefixLen > width * 8) {
+            throw new IllegalArgumentException("Invalid prefix length " + prefixLen + ".");
+        }
+        byte[] bytes = new byte[width];
+        int full = prefixLen / 8;
+        for (int i = 0; i < full; i++) {
+            bytes[i] = (byte) 0xFF;
+        }
+        if (full < width && prefixLen % 8 != 0) {
+            bytes[full] = (byte) (0xFF << (8 - prefixLen % 8));
+        }
+        return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    /**
+     * Ternary mask, either a dotted mask encoded as any other value, or a prefix length.
+     */
+    public static ByteString encodeMask(String mask, int width) {
+        if (mask.indexOf('.') >= 0 || mask.indexOf(':') >= 0 || mask.startsWith("0x")) {
+            return encode(mask, width);
+        }
+        return prefixMask(parseInt(mask, 0, mask.length(), 10), width);
+    }
+
+    private static boolean isInteger(String value) {
+        return value.indexOf(':') < 0 && value.indexOf('.') < 0;
+    }
+
+    private static int naturalWidth(String value) {
+        int colons = 0;
+        int dots = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            colons += c == ':' ? 1 : 0;
+            dots += c == '.' ? 1 : 0;
+        }
+
+        int width;
+        if (colons == 5 && !value.contains("::")) {
+            width = 6;
+        } else if (colons > 0) {
+            width = 16;
+        } else if (dots == 3) {
+            width = 4;
+        } else if (value.startsWith("0x") || value.startsWith("0X")) {
+            width = (value.length() - 1) / 2;
+        } else {
+            //log2(10) < 10 / 3, plus one byte of slack
+            width = value.length() * 10 / 24 + 1;
+        }
+
+        if (width > MAX_NATURAL_WIDTH) {
+            throw new IllegalArgumentException("Value " + value + " is too wide.");
+        }
+        return width;
+    }
+
+    private static void checkWidth(String value, int needed, int width) {
+        if (width < needed) {
+            throw new IllegalArgumentException("Value " + value + " does not fit in " + width + " bytes.");
+        }
+    }
+
+    private static void zero(byte[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = 0;
+        }
+    }
+
+    private static int digit(String value, int index, int radix) {
+        int d = Character.digit(value.charAt(index), radix);
+        if (d < 0) {
+            throw new IllegalArgumentException("Invalid character in value " + value + ".");
+        }
+        return d;
+    }
+
+    private static int parseInt(String value, int from, int to, int radix) {
+        if (from >= to) {
+            throw new IllegalArgumentException("Invalid value " + value + ".");
+        }
+        int result = 0;
+        for (int i = from; i < to; i++) {
+            result = result * radix + digit(value, i, radix);
+            if (result > 0xFFFF) {
+                throw new IllegalArgumentException("Invalid value " + value + ".");
+            }
+        }
+        return result;
+    }
+
+    private static void encodeIpv4(String value, byte[] out, int offset, int width) {
+        checkWidth(value, 4, width);
+        int base = offset + width - 4;
+        zero(out, offset, base);
+        int start = 0;
+        for (int i = 0; i < 4; i++) {
+            int end = value.indexOf('.', start);
+            end = end < 0 ? value.length() : end;
+            int octet = parseInt(value, start, end, 10);
+            if (octet > 255) {
+                throw new IllegalArgumentException("Invalid ipv4 address " + value + ".");
+            }
+            out[base + i] = (byte) octet;
+            start = end + 1;
+        }
+    }
+
+    private static void encodeMac(String value, byte[] out, int offset, int width) {
+        checkWidth(value, 6, width);
+        int base = offset + width - 6;
+        zero(out, offset, base);
+        int start = 0;
+        for (int i = 0; i < 6; i++) {
+            int end = value.indexOf(':', start);
+            end = end < 0 ? value.length() : end;
+            if (end - start > 2) {
+                throw new IllegalArgumentException("Invalid mac address " + value + ".");
+            }
+            out[base + i] = (byte) parseInt(value, start, end, 16);
+            start = end + 1;
+        }
+    }
+
+    /**
+     * The groups before "::" are written from the front, the groups after it
+     * are written next to them and then moved to the end.
+     */
+    private static void encodeIpv6(String value, byte[] out, int offset, int width) {
+        checkWidth(value, 16, width);
+        int base = offset + width - 16;
+        zero(out, offset, offset + width);
+        int length = value.length();
+        int groups = 0;
+        int gap = -1;
+        int pos = 0;
+        if (value.startsWith("::")) {
+            gap = 0;
+            pos = 2;
+        }
+
+        while (pos < length) {
+            int end = value.indexOf(':', pos);
+            end = end < 0 ? length : end;
+            if (groups == 8 || end - pos > 4) {
+                throw new IllegalArgumentException("Invalid ipv6 address " + value + ".");
+            }
+            int group = parseInt(value, pos, end, 16);
+            out[base + groups * 2] = (byte) (group >>> 8);
+            out[base + groups * 2 + 1] = (byte) group;
+            groups++;
+            pos = end + 1;
+            if (end + 1 < length && value.charAt(end + 1) == ':') {
+                if (gap >= 0) {
+                    throw new IllegalArgumentException("Invalid ipv6 address " + value + ".");
+                }
+                gap = groups;
+                pos = end + 2;
+            }
+        }
+
+        if (gap < 0) {
+            if (groups != 8) {
+                throw new IllegalArgumentException("Invalid ipv6 address " + value + ".");
+            }
+            return;
+        }
+        if (groups == 8) {
+            throw new IllegalArgumentException("Invalid ipv6 address " + value + ".");
+        }
+
+        int tail = (groups - gap) * 2;
+        System.arraycopy(out, base + gap * 2, out, base + 16 - tail, tail);
+        zero(out, base + gap * 2, base + 16 - tail);
+    }
+
+    private static void encodeHex(String value, int from, byte[] out, int offset, int width) {
+        zero(out, offset, offset + width);
+        int nibble = 0;
+        for (int i = value.length() - 1; i >= from; i--, nibble++) {
+            int d = digit(value, i, 16);
+            int index = nibble / 2;
+            if (index >= width) {
+                if (d != 0) {
+                    throw new IllegalArgumentException("Value " + value + " does not fit in " + width + " bytes.");
+                }
+                continue;
+            }
+            out[offset + width - 1 - index] |= (byte) (nibble % 2 == 0 ? d : d << 4);
+        }
+    }
+
+    private static void encodeDecimal(String value, byte[] out, int offset, int width) {
+        zero(out, offset, offset + width);
+        for (int i = 0; i < value.length(); i++) {
+            int carry = digit(value, i, 10);
+            for (int j = offset + width - 1; j >= offset; j--) {
+                int v = (out[j] & 0xFF) * 10 + carry;
+                out[j] = (byte) v;
+                carry = v >>> 8;
+            }
+            if (carry != 0) {
+                throw new IllegalArgumentException("Value " + value + " does not fit in " + width + " bytes.");
+            }
+        }
+    }
+}